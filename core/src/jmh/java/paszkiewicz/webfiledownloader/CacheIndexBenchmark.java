@@ -0,0 +1,139 @@
+package paszkiewicz.webfiledownloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of cache lookups done by every load, from raw url through normalization and hashing to
+ * the index and cached file. Rows are not written, so only the lookup itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheIndexBenchmark {
+	@Param({"1000", "100000"})
+	public int entries;
+
+	private DiskCache.Shared shared;
+	private DiskCache cache;
+	private String[] cachedUrls;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		shared = new DiskCache.Shared();
+		shared.setUrlNormalizer(new UrlNormalizer.Default("utm_*"));
+		cachedUrls = new String[entries];
+		final List<CacheIndex.Entry> rows = new ArrayList<>();
+		for (int i = 0; i < entries; i++) {
+			cachedUrls[i] = "https://Example.com/images/" + i + ".jpg?w=640&utm_source=x";
+			String url = shared.normalize(cachedUrls[i]);
+			CacheIndex.Entry e = new CacheIndex.Entry(CacheKeys.hash(url), url, "f" + i, i);
+			e.length = 1024;
+			e.complete = true;
+			rows.add(e);
+		}
+		File dir = Files.createTempDirectory("bench").toFile();
+		//misses evict one entry each, so the index keeps its size
+		cache = new DiskCache(shared, new NullDatabase(rows), dir, entries, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+			}
+		});
+		cache.getStats(); //load the index
+	}
+
+	/**
+	 * Lookup of complete file on the download thread, counting a hit
+	 */
+	@Benchmark
+	public CacheableFile hit() {
+		return cache.getCachedUrlFile(cachedUrls[next++ % entries]);
+	}
+
+	/**
+	 * Lookup of new url on the download thread, inserting its entry and evicting the eldest
+	 */
+	@Benchmark
+	public CacheableFile miss() {
+		return cache.getCachedUrlFile("https://example.com/other/" + next++ + ".jpg?w=640");
+	}
+
+	/**
+	 * Lookup on the main thread, deciding whether load waits behind network transfers
+	 */
+	@Benchmark
+	public File peekHit() {
+		return shared.peekLoadedFile(cachedUrls[next++ % entries]);
+	}
+
+	@Benchmark
+	public File peekMiss() {
+		return shared.peekLoadedFile("https://example.com/other/" + next++ + ".jpg?w=640");
+	}
+
+	/**
+	 * Serves prepared rows and drops all writes
+	 */
+	private static class NullDatabase implements CacheDatabase {
+		private final List<CacheIndex.Entry> rows;
+
+		NullDatabase(List<CacheIndex.Entry> rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public List<CacheIndex.Entry> readAll() {
+			return rows;
+		}
+
+		@Override
+		public boolean insert(CacheIndex.Entry entry) {
+			return true;
+		}
+
+		@Override
+		public List<CacheIndex.Entry> insertAll(List<CacheIndex.Entry> entries) {
+			return entries;
+		}
+
+		@Override
+		public void update(CacheIndex.Entry entry) {
+		}
+
+		@Override
+		public void touch(String key, long date) {
+		}
+
+		@Override
+		public void touchAll(List<CacheIndex.Entry> entries) {
+		}
+
+		@Override
+		public void delete(String key) {
+		}
+
+		@Override
+		public void deleteAll(List<CacheIndex.Entry> entries) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
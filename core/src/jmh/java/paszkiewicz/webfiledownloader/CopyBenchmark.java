@@ -0,0 +1,87 @@
+package paszkiewicz.webfiledownloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link FileTransfer} stream copy for different buffer sizes, with and without
+ * write-behind
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CopyBenchmark {
+	private final static int SIZE = 16 * 1024 * 1024;
+
+	@Param({"4096", "65536"})
+	public int bufferSize;
+	@Param({"false", "true"})
+	public boolean writeBehind;
+
+	private byte[] body;
+	private ExecutorService writer;
+	private FileTransfer transfer;
+	private CountingSink sink;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		body = new byte[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			body[i] = (byte) i;
+		}
+		transfer = new FileTransfer(bufferSize);
+		if (writeBehind) {
+			writer = Executors.newCachedThreadPool();
+			transfer.setWriteBehind(writer, bufferSize, 4);
+		}
+		sink = new CountingSink();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (writer != null)
+			writer.shutdownNow();
+	}
+
+	/**
+	 * @return bytes written, returned so the copy is not optimized away
+	 */
+	@Benchmark
+	public long copy() throws IOException {
+		sink.count = 0;
+		transfer.copy(new ByteArrayInputStream(body), sink, 0, null);
+		return sink.count;
+	}
+
+	/**
+	 * Drops written bytes, so only the copy loop is measured
+	 */
+	private static class CountingSink extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
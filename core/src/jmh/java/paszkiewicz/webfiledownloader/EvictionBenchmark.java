@@ -0,0 +1,58 @@
+package paszkiewicz.webfiledownloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of inserting an entry into a full index and evicting one to make room, per policy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EvictionBenchmark {
+	@Param({"1000", "100000"})
+	public int entries;
+	@Param({"LRU", "LFU", "GDSF"})
+	public String policy;
+
+	private CacheIndex index;
+	private long next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if ("LFU".equals(policy))
+			index = new CacheIndex(new EvictionPolicy.Lfu());
+		else if ("GDSF".equals(policy))
+			index = new CacheIndex(new EvictionPolicy.Gdsf());
+		else
+			index = new CacheIndex(new EvictionPolicy.Lru());
+		for (next = 0; next < entries; next++) {
+			index.put(createEntry(next));
+		}
+	}
+
+	@Benchmark
+	public List<CacheIndex.Entry> putAndEvict() {
+		CacheIndex.Entry e = createEntry(next++);
+		index.put(e);
+		index.touch(e.key, next);
+		return index.evict(entries, e.key);
+	}
+
+	private static CacheIndex.Entry createEntry(long i) {
+		CacheIndex.Entry e = new CacheIndex.Entry(Long.toString(i), "f" + i, i);
+		e.length = 1024 + (i % 64) * 1024;
+		e.complete = true;
+		return e;
+	}
+}
@@ -0,0 +1,131 @@
+package paszkiewicz.webfiledownloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters summed from all {@link DownloadMetrics} and cache evictions.
+ */
+public final class AggregateMetrics {
+	private static final AtomicLong downloads = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong resumes = new AtomicLong();
+	private static final AtomicLong retries = new AtomicLong();
+	private static final AtomicLong networkBytes = new AtomicLong();
+	private static final AtomicLong contentBytes = new AtomicLong();
+	private static final AtomicLong diskBytes = new AtomicLong();
+	private static final AtomicLong bytesSavedByResume = new AtomicLong();
+	private static final AtomicLong discardedBytes = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+
+	private AggregateMetrics() {
+	}
+
+	static void record(DownloadMetrics m) {
+		downloads.incrementAndGet();
+		if (m.errorCode != 0)
+			failures.incrementAndGet();
+		switch (m.cacheResult) {
+			case DownloadMetrics.CACHE_HIT:
+				hits.incrementAndGet();
+				break;
+			case DownloadMetrics.CACHE_RESUMED:
+				resumes.incrementAndGet();
+				bytesSavedByResume.addAndGet(m.diskBytes);
+				break;
+			case DownloadMetrics.CACHE_MISS:
+				misses.incrementAndGet();
+				break;
+		}
+		retries.addAndGet(m.retryCount);
+		networkBytes.addAndGet(m.networkBytes);
+		contentBytes.addAndGet(m.contentBytes);
+		diskBytes.addAndGet(m.diskBytes);
+		discardedBytes.addAndGet(m.discardedBytes);
+	}
+
+	static void recordEvictions(int count) {
+		evictions.addAndGet(count);
+	}
+
+	/** Amount of finished download tasks, including failed ones. */
+	public static long getDownloads() {
+		return downloads.get();
+	}
+
+	public static long getFailures() {
+		return failures.get();
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/** Completed network downloads that found nothing cached. */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static long getResumes() {
+		return resumes.get();
+	}
+
+	public static long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return fraction of completed loads served completely from cache, 0 if nothing was loaded
+	 */
+	public static float getHitRatio() {
+		long total = hits.get() + misses.get() + resumes.get();
+		return total == 0 ? 0 : (float) hits.get() / total;
+	}
+
+	public static long getNetworkBytes() {
+		return networkBytes.get();
+	}
+
+	/** Bytes copied from content providers, they are not counted as network bytes. */
+	public static long getContentBytes() {
+		return contentBytes.get();
+	}
+
+	public static long getDiskBytes() {
+		return diskBytes.get();
+	}
+
+	/** Bytes that were not downloaded again thanks to continuing partial files. */
+	public static long getBytesSavedByResume() {
+		return bytesSavedByResume.get();
+	}
+
+	/** Partially cached bytes that had to be downloaded again. */
+	public static long getDiscardedBytes() {
+		return discardedBytes.get();
+	}
+
+	/** Amount of entries dropped from cache to stay within its size. */
+	public static long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Zero all counters
+	 */
+	public static void reset() {
+		downloads.set(0);
+		failures.set(0);
+		hits.set(0);
+		misses.set(0);
+		resumes.set(0);
+		retries.set(0);
+		networkBytes.set(0);
+		contentBytes.set(0);
+		diskBytes.set(0);
+		bytesSavedByResume.set(0);
+		discardedBytes.set(0);
+		evictions.set(0);
+	}
+}
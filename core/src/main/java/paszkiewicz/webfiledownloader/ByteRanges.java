@@ -0,0 +1,128 @@
+package paszkiewicz.webfiledownloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of byte ranges stored in a sparse cache file, merged as they are added.<br> Ranges are
+ * half-open, start inclusive and end exclusive. Has no android dependencies.
+ */
+class ByteRanges {
+	/**
+	 * Start of every range mapped to its end, ranges never overlap or touch
+	 */
+	private final TreeMap<Long, Long> ranges = new TreeMap<>();
+	private long coveredBytes;
+
+	ByteRanges() {
+	}
+
+	ByteRanges(ByteRanges other) {
+		ranges.putAll(other.ranges);
+		coveredBytes = other.coveredBytes;
+	}
+
+	/**
+	 * Parse ranges written by {@link #toString()}
+	 *
+	 * @param value stored ranges, can be null
+	 * @return parsed ranges, empty if value is null or malformed
+	 */
+	static ByteRanges parse(String value) {
+		ByteRanges parsed = new ByteRanges();
+		if (value == null || value.isEmpty())
+			return parsed;
+		try {
+			for (String range : value.split(",")) {
+				int dash = range.indexOf('-');
+				parsed.add(Long.parseLong(range.substring(0, dash)),
+						Long.parseLong(range.substring(dash + 1)));
+			}
+		} catch (RuntimeException e) {
+			return new ByteRanges(); //don't trust any part of corrupted value
+		}
+		return parsed;
+	}
+
+	/**
+	 * Mark range as stored, merging it with overlapping and adjacent ranges
+	 */
+	void add(long start, long end) {
+		if (start >= end)
+			return;
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+			remove(before.getKey());
+		}
+		Map.Entry<Long, Long> next;
+		while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			remove(next.getKey());
+		}
+		ranges.put(start, end);
+		coveredBytes += end - start;
+	}
+
+	/**
+	 * @return true if whole range is stored
+	 */
+	boolean contains(long start, long end) {
+		if (start >= end)
+			return true;
+		Map.Entry<Long, Long> e = ranges.floorEntry(start);
+		return e != null && e.getValue() >= end;
+	}
+
+	/**
+	 * @return parts of the range that are not stored, in ascending order
+	 */
+	List<long[]> getGaps(long start, long end) {
+		List<long[]> gaps = new ArrayList<>();
+		long position = start;
+		Map.Entry<Long, Long> e = ranges.floorEntry(start);
+		if (e != null && e.getValue() > position)
+			position = e.getValue();
+		for (Map.Entry<Long, Long> r : ranges.subMap(start, false, end, false).entrySet()) {
+			if (r.getKey() > position)
+				gaps.add(new long[]{position, r.getKey()});
+			position = Math.max(position, r.getValue());
+		}
+		if (position < end)
+			gaps.add(new long[]{position, end});
+		return gaps;
+	}
+
+	/**
+	 * @return sum of lengths of all stored ranges
+	 */
+	long getCoveredBytes() {
+		return coveredBytes;
+	}
+
+	boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	private void remove(long start) {
+		long end = ranges.remove(start);
+		coveredBytes -= end - start;
+	}
+
+	/**
+	 * @return ranges as comma separated start-end pairs
+	 */
+	@Override
+	public String toString() {
+		StringBuilder value = new StringBuilder();
+		for (Map.Entry<Long, Long> r : ranges.entrySet()) {
+			if (value.length() > 0)
+				value.append(',');
+			value.append(r.getKey()).append('-').append(r.getValue());
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,66 @@
+package paszkiewicz.webfiledownloader;
+
+import java.util.List;
+
+/**
+ * Persistent rows mirrored by {@link CacheIndex}, one per entry.<br> Written by {@link DiskCache}
+ * while it holds the lock of its index, implemented over SQLite on android.
+ */
+interface CacheDatabase {
+	/**
+	 * @return all rows, least recently accessed first
+	 */
+	List<CacheIndex.Entry> readAll();
+
+	/**
+	 * @param entry new entry
+	 * @return false if row couldn't be inserted
+	 */
+	boolean insert(CacheIndex.Entry entry);
+
+	/**
+	 * Insert rows in one transaction
+	 *
+	 * @param entries new entries
+	 * @return entries whose rows were inserted
+	 * @throws RuntimeException if transaction fails, nothing is inserted then
+	 */
+	List<CacheIndex.Entry> insertAll(List<CacheIndex.Entry> entries);
+
+	/**
+	 * Write all columns of the row from entry
+	 *
+	 * @param entry changed entry
+	 */
+	void update(CacheIndex.Entry entry);
+
+	/**
+	 * Record access of the row: set its date and count a hit
+	 *
+	 * @param key  key of the row
+	 * @param date access time
+	 */
+	void touch(String key, long date);
+
+	/**
+	 * Write date and hits of rows from entries in one transaction, for accesses that were
+	 * counted in memory only
+	 *
+	 * @param entries accessed entries
+	 */
+	void touchAll(List<CacheIndex.Entry> entries);
+
+	/**
+	 * @param key key of the row
+	 */
+	void delete(String key);
+
+	/**
+	 * Delete rows in one transaction
+	 *
+	 * @param entries removed entries
+	 */
+	void deleteAll(List<CacheIndex.Entry> entries);
+
+	void close();
+}
@@ -0,0 +1,12 @@
+package paszkiewicz.webfiledownloader;
+
+/**
+ * Selects cached urls, eg. files to invalidate
+ */
+public interface CacheFilter {
+	/**
+	 * @param url url passed to the download, as normalized by {@link UrlNormalizer}
+	 * @return true to select the url
+	 */
+	boolean accept(String url);
+}
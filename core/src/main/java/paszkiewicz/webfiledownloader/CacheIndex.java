@@ -0,0 +1,446 @@
+package paszkiewicz.webfiledownloader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * In-memory view of cached entries, ordered by {@link EvictionPolicy} priority.<br> Has no
+ * android dependencies, {@link DiskCache} keeps it in sync with the database.
+ */
+class CacheIndex {
+	private final static Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			int c = Double.compare(a.priority, b.priority);
+			if (c != 0)
+				return c;
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	private final HashMap<String, Entry> entries = new HashMap<>();
+	private final TreeSet<Entry> evictionOrder = new TreeSet<>(EVICTION_ORDER);
+	private EvictionPolicy policy;
+	/**
+	 * Incremented on every change, orders entries of equal priority from least recent change
+	 */
+	private long sequence;
+	/**
+	 * Sum of known lengths of all entries
+	 */
+	private long totalBytes;
+	/**
+	 * Sum of bytes of complete entries, all that eviction can free without touching downloads
+	 * still running
+	 */
+	private long completeBytes;
+	private int completeCount;
+	private int partialCount;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	CacheIndex() {
+		this(new EvictionPolicy.Lru());
+	}
+
+	CacheIndex(EvictionPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Replace policy, reordering all entries
+	 */
+	synchronized void setPolicy(EvictionPolicy policy) {
+		this.policy = policy;
+		List<Entry> all = new ArrayList<>(evictionOrder);
+		evictionOrder.clear();
+		for (Entry e : all) {
+			e.priority = policy.getPriority(e.hits, e.length, e.date);
+			evictionOrder.add(e);
+		}
+	}
+
+	/**
+	 * @param key key to look up
+	 * @return entry or null if key is not cached
+	 */
+	synchronized Entry get(String key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Count a hit of the entry
+	 *
+	 * @param key  key of accessed entry
+	 * @param date access time
+	 * @return touched entry or null if key is not cached
+	 */
+	synchronized Entry touch(String key, long date) {
+		Entry e = entries.get(key);
+		if (e != null) {
+			if (e.complete)
+				hitCount++;
+			else
+				missCount++;
+			evictionOrder.remove(e);
+			e.date = date;
+			e.hits++;
+			reorder(e);
+		}
+		return e;
+	}
+
+	/**
+	 * Count a hit of the entry if it's complete
+	 *
+	 * @param key  key of accessed entry
+	 * @param date access time
+	 * @return touched entry or null if key is not cached or its complete file is not in cache
+	 */
+	synchronized Entry touchIfComplete(String key, long date) {
+		Entry e = entries.get(key);
+		if (e == null || !e.isCached())
+			return null;
+		return touch(key, date);
+	}
+
+	/**
+	 * Count lookup of url that was not cached
+	 */
+	synchronized void countMiss() {
+		missCount++;
+	}
+
+	/**
+	 * Insert entry, replacing old entry with the same key
+	 */
+	synchronized void put(Entry entry) {
+		remove(entry.key);
+		entries.put(entry.key, entry);
+		account(entry, 1);
+		reorder(entry);
+	}
+
+	/**
+	 * @return removed entry or null if key was not cached
+	 */
+	synchronized Entry remove(String key) {
+		Entry e = entries.remove(key);
+		if (e != null) {
+			evictionOrder.remove(e);
+			account(e, -1);
+		}
+		return e;
+	}
+
+	/**
+	 * Change length of indexed entry
+	 *
+	 * @param entry  entry from this index
+	 * @param length new length, -1 if unknown
+	 */
+	synchronized void setLength(Entry entry, long length) {
+		setLength(entry, length, entry.external);
+	}
+
+	/**
+	 * Change length of indexed entry and where its content is stored
+	 *
+	 * @param entry    entry from this index
+	 * @param length   new length, -1 if unknown
+	 * @param external true if content is kept outside of the cache directory
+	 */
+	synchronized void setLength(Entry entry, long length, boolean external) {
+		if (entries.get(entry.key) != entry) {
+			entry.length = length;
+			entry.external = external;
+			return;
+		}
+		evictionOrder.remove(entry);
+		account(entry, -1);
+		entry.length = length;
+		entry.external = external;
+		account(entry, 1);
+		reorder(entry);
+	}
+
+	/**
+	 * Replace stored ranges of indexed sparse entry
+	 *
+	 * @param entry  entry from this index
+	 * @param ranges ranges of the file that are stored, not modified afterwards. Null if file is
+	 *               not sparse.
+	 */
+	synchronized void setRanges(Entry entry, ByteRanges ranges) {
+		boolean isIndexed = entries.get(entry.key) == entry;
+		if (isIndexed)
+			account(entry, -1);
+		entry.ranges = ranges;
+		if (isIndexed)
+			account(entry, 1);
+	}
+
+	/**
+	 * Replace source of indexed entry that is not copied into cache yet
+	 *
+	 * @param entry entry from this index
+	 * @param seed  source from {@link CacheSeed#getSource()}, null once file is in cache
+	 */
+	synchronized void setSeed(Entry entry, String seed) {
+		boolean isIndexed = entries.get(entry.key) == entry;
+		if (isIndexed)
+			account(entry, -1);
+		entry.seed = seed;
+		if (isIndexed)
+			account(entry, 1);
+	}
+
+	/**
+	 * Mark indexed entry as fully downloaded or not
+	 *
+	 * @param entry    entry from this index
+	 * @param complete true if file was committed under its final name
+	 */
+	synchronized void setComplete(Entry entry, boolean complete) {
+		boolean isIndexed = entries.get(entry.key) == entry;
+		if (isIndexed)
+			account(entry, -1);
+		entry.complete = complete;
+		if (isIndexed)
+			account(entry, 1);
+	}
+
+	/**
+	 * Reset entry to empty state after its file was deleted
+	 *
+	 * @param entry entry from this index
+	 * @param date  time of invalidation
+	 */
+	synchronized void reset(Entry entry, long date) {
+		boolean isIndexed = entries.get(entry.key) == entry;
+		if (isIndexed) {
+			evictionOrder.remove(entry);
+			account(entry, -1);
+		}
+		entry.length = -1;
+		entry.eTag = null;
+		entry.hits = 0;
+		entry.date = date;
+		entry.complete = false;
+		entry.external = false;
+		entry.ranges = null;
+		entry.seed = null;
+		if (isIndexed) {
+			account(entry, 1);
+			reorder(entry);
+		}
+	}
+
+	/**
+	 * Remove all entries accepted by filter
+	 *
+	 * @param filter tested with normalized url of every entry
+	 * @return removed entries, caller is responsible for deleting their rows and files
+	 */
+	synchronized List<Entry> removeAll(CacheFilter filter) {
+		List<Entry> removed = new ArrayList<>();
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			if (filter.accept(e.url)) {
+				it.remove();
+				evictionOrder.remove(e);
+				account(e, -1);
+				removed.add(e);
+			}
+		}
+		return removed;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return sum of known lengths of all entries
+	 */
+	synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	synchronized long getCompleteBytes() {
+		return completeBytes;
+	}
+
+	/**
+	 * @return counters maintained as entries change, read without scanning the index
+	 */
+	synchronized CacheStats getStats() {
+		return new CacheStats(totalBytes, completeCount, partialCount, hitCount, missCount,
+				evictionCount);
+	}
+
+	/**
+	 * Remove entries with lowest priority until index holds at most maxEntries
+	 *
+	 * @param maxEntries amount of entries to keep
+	 * @param keepKey    key of entry that must not be removed, eg. the one just admitted whose
+	 *                   priority has no hits yet. Can be null.
+	 * @return removed entries, caller is responsible for deleting their rows and files
+	 */
+	synchronized List<Entry> evict(int maxEntries, String keepKey) {
+		List<Entry> evicted = new ArrayList<>();
+		while (entries.size() > maxEntries) {
+			Entry e = evictFirst(keepKey, false);
+			if (e == null)
+				break;
+			evicted.add(e);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Remove entry with lowest priority
+	 *
+	 * @param keepKey key of entry that must not be removed, can be null
+	 * @return removed entry or null if there is nothing else to remove
+	 */
+	synchronized Entry evictEldest(String keepKey) {
+		return evictFirst(keepKey, false);
+	}
+
+	/**
+	 * Remove complete entry with lowest priority, part files of running downloads are kept
+	 *
+	 * @param keepKey key of entry that must not be removed, can be null
+	 * @return removed entry or null if there is no other complete entry
+	 */
+	synchronized Entry evictEldestComplete(String keepKey) {
+		return evictFirst(keepKey, true);
+	}
+
+	private Entry evictFirst(String keepKey, boolean isCompleteOnly) {
+		for (Iterator<Entry> it = evictionOrder.iterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			if (e.key.equals(keepKey) || (isCompleteOnly && !e.isCached()))
+				continue;
+			it.remove();
+			entries.remove(e.key);
+			account(e, -1);
+			evictionCount++;
+			policy.onEvicted(e.priority);
+			return e;
+		}
+		return null;
+	}
+
+	/**
+	 * Add entry to counters or take it out of them, before and after every change of its state
+	 *
+	 * @param sign 1 to add, -1 to subtract
+	 */
+	private void account(Entry e, int sign) {
+		totalBytes += sign * e.getBytes();
+		if (e.isCached()) {
+			completeCount += sign;
+			completeBytes += sign * e.getBytes();
+		} else if (e.isPartial()) {
+			partialCount += sign;
+		}
+	}
+
+	/**
+	 * Compute priority of entry that is not in eviction order and insert it back
+	 */
+	private void reorder(Entry e) {
+		e.priority = policy.getPriority(e.hits, e.length, e.date);
+		e.sequence = ++sequence;
+		evictionOrder.add(e);
+	}
+
+	/**
+	 * Single cached file, mirrors row of the cache table
+	 */
+	static class Entry {
+		/**
+		 * Fixed length key of the entry, see {@link CacheKeys#hash(String)}
+		 */
+		final String key;
+		/**
+		 * Normalized url, kept for invalidation by {@link CacheFilter}
+		 */
+		final String url;
+		String filename;
+		long date;
+		/**
+		 * Change through {@link #setLength(Entry, long)} once entry is indexed
+		 */
+		long length = -1;
+		String eTag;
+		long hits;
+		/**
+		 * Content was written to caller's {@link Destination} only, cache file is empty. Change
+		 * through {@link #setLength(Entry, long, boolean)} once entry is indexed
+		 */
+		boolean external;
+		/**
+		 * Set after file was fully downloaded and committed under its final name, or fully written
+		 * to {@link Destination} if it's {@link #external}. Change through {@link
+		 * #setComplete(Entry, boolean)} once entry is indexed
+		 */
+		volatile boolean complete;
+		/**
+		 * Parts of sparse file fetched by {@code SparseDownloader}, null if file is written from
+		 * the start. Change through {@link #setRanges(Entry, ByteRanges)} once entry is indexed
+		 */
+		ByteRanges ranges;
+		/**
+		 * Preseeded source copied into cache on first load, null if file is downloaded. Change
+		 * through {@link #setSeed(Entry, String)} once entry is indexed
+		 */
+		String seed;
+
+		private double priority;
+		private long sequence;
+
+		Entry(String url, String filename, long date) {
+			this(url, url, filename, date);
+		}
+
+		Entry(String key, String url, String filename, long date) {
+			this.key = key;
+			this.url = url;
+			this.filename = filename;
+			this.date = date;
+		}
+
+		/**
+		 * @return bytes counted towards cache size
+		 */
+		long getBytes() {
+			if (external || seed != null)
+				return 0;
+			if (ranges != null)
+				return ranges.getCoveredBytes();
+			return Math.max(length, 0);
+		}
+
+		/**
+		 * @return true if complete file is in cache, not only in a destination
+		 */
+		boolean isCached() {
+			return complete && !external;
+		}
+
+		/**
+		 * @return true if download started and left part of the file in cache
+		 */
+		boolean isPartial() {
+			return !complete && !external && seed == null && (length >= 0 || ranges != null);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package paszkiewicz.webfiledownloader;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Keys of cache entries.<br> Urls of original files and of variants derived from them by {@link
+ * Transform}s are normalized, then hashed into fixed length keys. Has no android dependencies.
+ */
+abstract class CacheKeys {
+	/**
+	 * Separates url from transform keys in cache key of derived variant. Urls may contain literal
+	 * spaces, line breaks can't appear in a valid one.
+	 */
+	private final static String TRANSFORM_SEPARATOR = "\n";
+	/**
+	 * Length of keys, hex digits of truncated SHA-256 of normalized url
+	 */
+	final static int KEY_LENGTH = 32;
+	private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * @param url        url of original file
+	 * @param transforms stages applied to it
+	 * @return cache key of derived variant, or url itself if there are no transforms
+	 */
+	static String getDerivedKey(String url, List<Transform> transforms) {
+		StringBuilder key = new StringBuilder(url);
+		for (Transform t : transforms) {
+			key.append(TRANSFORM_SEPARATOR).append(t.getKey());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param key cache key of original file or its derived variant
+	 * @return url of original file
+	 */
+	static String getOriginalUrl(String key) {
+		int i = key.indexOf(TRANSFORM_SEPARATOR);
+		return i < 0 ? key : key.substring(0, i);
+	}
+
+	/**
+	 * @param name       url or derived key, see {@link #getDerivedKey(String, List)}
+	 * @param normalizer normalizer applied to the url
+	 * @return normalized url, followed by keys of transforms of derived key
+	 */
+	static String normalize(String name, UrlNormalizer normalizer) {
+		String url = getOriginalUrl(name);
+		return normalizer.normalize(url) + name.substring(url.length());
+	}
+
+	/**
+	 * Keys are fixed length, so the index stays small no matter how long urls are
+	 *
+	 * @param normalized result of {@link #normalize(String, UrlNormalizer)}
+	 * @return {@link #KEY_LENGTH} hex digits of its SHA-256
+	 */
+	static String hash(String normalized) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); //every platform provides SHA-256
+		}
+		char[] key = new char[KEY_LENGTH];
+		for (int i = 0; i < KEY_LENGTH; i += 2) {
+			key[i] = HEX_DIGITS[(digest[i / 2] >> 4) & 0xf];
+			key[i + 1] = HEX_DIGITS[digest[i / 2] & 0xf];
+		}
+		return new String(key);
+	}
+}
@@ -0,0 +1,68 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.File;
+
+/**
+ * Prebuilt copy of a remote file registered in the cache by {@code WebFileCache.preseed},
+ * so it's not downloaded on first use.<br> Asset
+ * is copied into the cache only when its url is first loaded. File from a directory is linked
+ * into the cache when both are on the same volume, otherwise it's copied on first load as well
+ * and must stay in place until then.
+ */
+public final class CacheSeed {
+	final static String SOURCE_ASSET = "asset:";
+	final static String SOURCE_FILE = "file:";
+
+	final String url;
+	final String assetPath;
+	final File file;
+	String eTag;
+	long length = -1;
+
+	private CacheSeed(String url, String assetPath, File file) {
+		this.url = url;
+		this.assetPath = assetPath;
+		this.file = file;
+	}
+
+	/**
+	 * @param url       url the asset is a copy of
+	 * @param assetPath path of the asset in the apk
+	 */
+	public static CacheSeed fromAsset(String url, String assetPath) {
+		return new CacheSeed(url, assetPath, null);
+	}
+
+	/**
+	 * @param url  url the file is a copy of
+	 * @param file local file, left in place
+	 */
+	public static CacheSeed fromFile(String url, File file) {
+		CacheSeed seed = new CacheSeed(url, null, file);
+		seed.length = file.length();
+		return seed;
+	}
+
+	/**
+	 * @param eTag ETag or Last-Modified value server sends for this version of the file, lets
+	 *             later downloads continue and validate against it. Null if unknown.
+	 */
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
+	/**
+	 * @param length length of the file in bytes, checked when asset is copied. Files report their
+	 *               own length.
+	 */
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * @return source stored with entry until it's copied into the cache
+	 */
+	String getSource() {
+		return assetPath != null ? SOURCE_ASSET + assetPath : SOURCE_FILE + file.getAbsolutePath();
+	}
+}
@@ -0,0 +1,73 @@
+package paszkiewicz.webfiledownloader;
+
+/**
+ * Snapshot of download cache counters, see {@code WebFileCache.getStats}.
+ * <br> Counters are maintained as entries change, so taking a snapshot costs the same regardless
+ * of cache size. Hits, misses and evictions are counted since the cache was first opened by this
+ * process.
+ */
+public final class CacheStats {
+	private final long totalBytes;
+	private final int completeCount;
+	private final int partialCount;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+
+	CacheStats(long totalBytes, int completeCount, int partialCount, long hits, long misses,
+			   long evictions) {
+		this.totalBytes = totalBytes;
+		this.completeCount = completeCount;
+		this.partialCount = partialCount;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	/**
+	 * @return bytes counted towards cache size, partial files count with their expected length
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/** Amount of fully downloaded files. */
+	public int getCompleteCount() {
+		return completeCount;
+	}
+
+	/** Amount of files whose download started but didn't finish. */
+	public int getPartialCount() {
+		return partialCount;
+	}
+
+	/** Lookups of files that were complete in cache. */
+	public long getHits() {
+		return hits;
+	}
+
+	/** Lookups of files that were missing or incomplete. */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return fraction of lookups served from cache, 0 if nothing was looked up
+	 */
+	public float getHitRatio() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (float) hits / total;
+	}
+
+	/** Amount of entries dropped from cache to stay within its size. */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats{bytes=" + totalBytes + ", complete=" + completeCount + ", partial="
+				+ partialCount + ", hits=" + hits + ", misses=" + misses + ", evictions="
+				+ evictions + "}";
+	}
+}
@@ -0,0 +1,179 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Holds cached image and data read from db, or about to be injected to db.<br> Has no android
+ * dependencies.
+ */
+class CacheableFile {
+	/**
+	 * Appended to name of {@link #file} while it's being written
+	 */
+	final static String PART_SUFFIX = ".part";
+
+	final String url;
+	/**
+	 * Key of cache entry and of {@code MemoryCache} copy, null if file is not cached
+	 */
+	final String key;
+	/**
+	 * Complete file, only exists once download was committed
+	 */
+	final File file;
+	/**
+	 * File written by the download, renamed to {@link #file} when it's complete
+	 */
+	final File partFile;
+	long length = -1;
+	String eTag;
+	/**
+	 * Not fetched from database, set to true after validating ETag with server
+	 */
+	boolean partIsValid = false;
+	/**
+	 * Caller provided target written instead of {@link #file}, null to download into cache
+	 */
+	Destination destination;
+	/**
+	 * True if content is kept only by {@link #destination}, cache file stays empty
+	 */
+	boolean external = false;
+	/**
+	 * Read from database, true once {@link #file} was committed with final {@link #length}, or
+	 * once {@link #destination} was fully written if file is {@link #external}
+	 */
+	boolean complete = false;
+	/**
+	 * Stored parts of sparse {@link #file}, null if it's not sparse. Copy of indexed ranges,
+	 * recorded with {@link DiskCache#saveRanges(CacheableFile)}.
+	 */
+	ByteRanges ranges;
+	/**
+	 * Preseeded source to copy into cache instead of downloading, see {@link CacheSeed}. Null if
+	 * file is not preseeded or was copied already.
+	 */
+	String seed;
+	/**
+	 * Set instead of caching when local content is read in place, {@link #file} is null then.
+	 * Opened {@code AssetFileDescriptor} on android.
+	 */
+	Closeable directHandle;
+	/**
+	 * Contents of small complete file held by {@code MemoryCache}, null otherwise
+	 */
+	ByteBuffer bytes;
+
+	/**
+	 * Used on cache hit, we can load all details here
+	 *
+	 * @param url   url the file was looked up with
+	 * @param entry indexed row of the file
+	 * @param f     file loaded from cache
+	 */
+	CacheableFile(String url, CacheIndex.Entry entry, File f) {
+		this.url = url;
+		key = entry.key;
+		file = f;
+		partFile = getPartFile(f);
+		length = entry.length;
+		eTag = entry.eTag;
+		external = entry.external;
+		complete = entry.complete;
+		if (entry.ranges != null)
+			ranges = new ByteRanges(entry.ranges);
+		seed = entry.seed;
+	}
+
+	/**
+	 * Used on cache miss, we only know url and empty file in cache
+	 *
+	 * @param url url of file
+	 * @param key key of new cache entry
+	 * @param f   empty file
+	 */
+	CacheableFile(String url, String key, File f) {
+		this.url = url;
+		this.key = key;
+		this.file = f;
+		this.partFile = getPartFile(f);
+	}
+
+	/**
+	 * Used for content read in place, without cache entry
+	 *
+	 * @param url url of content
+	 * @param f   file holding the content, null if it's read through {@link #directHandle}
+	 */
+	CacheableFile(String url, File f) {
+		this(url, (String) null, f);
+	}
+
+	/**
+	 * @param f complete file
+	 * @return file written while download is in progress, null if f is null
+	 */
+	static File getPartFile(File f) {
+		return f != null ? new File(f.getPath() + PART_SUFFIX) : null;
+	}
+
+	/**
+	 * Check if file is loaded, if it is it can be swiftly returned. Cached file is checked in the
+	 * index only. Destination must match final length of complete download, so files that were
+	 * not written by it aren't taken for a hit.
+	 *
+	 * @return true if file is complete, false otherwise
+	 */
+	boolean isLoaded() throws IOException {
+		if (destination == null)
+			return isCached();
+		return complete && length >= 0 && getStoredLength() == length;
+	}
+
+	/**
+	 * @return true if complete file is in cache, not only in a destination
+	 */
+	boolean isCached() {
+		return complete && !external;
+	}
+
+	/**
+	 * Check if file is partially loaded so we can continue downloading it
+	 *
+	 * @return true if file is partially loaded, false if its empty or complete
+	 */
+	boolean isPartiallyLoaded() throws IOException {
+		long fileSize = getStoredLength();
+		return fileSize > 0 && fileSize < length;
+	}
+
+	/**
+	 * @return true if complete copy is in cache while download goes to a destination
+	 */
+	boolean isCachedCopyLoaded() {
+		return destination != null && isCached();
+	}
+
+	/**
+	 * @return amount of bytes written to destination, or to part file if there is none
+	 * @throws IOException if destination can't report its size
+	 */
+	long getStoredLength() throws IOException {
+		return destination != null ? destination.getStoredLength() : partFile.length();
+	}
+
+	/**
+	 * Close direct handle of result that will not be delivered
+	 */
+	void closeDirectHandle() {
+		if (directHandle != null) {
+			try {
+				directHandle.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input of {@link DownloadJob}, eg. remote file or content uri, opened once per attempt and
+ * continued from stored bytes if it still has the same version.<br> Has no android dependencies,
+ * loaders adapt their inputs to it.
+ */
+abstract class ContentSource {
+	/**
+	 * Open input for the file
+	 *
+	 * @param file cached file, set {@link CacheableFile#partIsValid} = true to continue stored
+	 *             bytes. Set its length and eTag to those of opened version otherwise.
+	 * @return opened stream, or null to end the job without a result
+	 * @throws Exception anything thrown while opening, retried if policy allows
+	 */
+	abstract InputStream open(CacheableFile file) throws Exception;
+
+	/**
+	 * Copy opened input into output. Override to use faster path for inputs that allow it.
+	 *
+	 * @param transfer copy loop of the job
+	 * @param input    stream returned by {@link #open(CacheableFile)}
+	 * @param output   cached file or destination, positioned after restored progress
+	 * @param progress amount of bytes restored from partial download
+	 * @param listener receives progress and decides when to stop
+	 * @return true if input was copied to the end, false if job was stopped
+	 * @throws IOException if reading or writing fails
+	 */
+	boolean copy(FileTransfer transfer, InputStream input, OutputStream output, long progress,
+				 FileTransfer.Listener listener) throws IOException {
+		return transfer.copy(input, output, progress, listener);
+	}
+
+	/**
+	 * Check if complete cached file still matches the source. Override when source can be
+	 * validated cheaply, invalid file is downloaded again from scratch.
+	 *
+	 * @param file complete file with length and etag read from cache
+	 * @return true if cached file can be returned
+	 * @throws Exception anything thrown while validating
+	 */
+	boolean isCacheValid(CacheableFile file) throws Exception {
+		return true;
+	}
+
+	/**
+	 * @return true if input is downloaded from network, its bytes and cache misses are counted
+	 * in network metrics
+	 */
+	boolean isNetwork() {
+		return false;
+	}
+
+	/**
+	 * Called on any thread when job is aborted, must be safe to call before or while input is
+	 * opened
+	 */
+	void abort() {
+	}
+
+	/**
+	 * Release what was opened by last {@link #open(CacheableFile)}, called after every attempt
+	 */
+	void release() {
+	}
+}
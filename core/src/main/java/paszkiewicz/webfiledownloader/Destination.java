@@ -0,0 +1,175 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Caller provided target of a download, written instead of a file in the cache directory.<br>
+ * Destination must be empty or hold earlier partial download of the same url, which is continued
+ * if server still serves the same version. Length and validator are kept in cache database either
+ * way. By default file is also written into the cache, see {@link #setBypassCache(boolean)}.
+ */
+public abstract class Destination {
+	private boolean bypassCache = false;
+
+	/**
+	 * @param file file to download into, created if missing
+	 */
+	public static Destination toFile(File file) {
+		return new FileDestination(file);
+	}
+
+	/**
+	 * @param channel writable channel, its size is taken as already downloaded part. It's not
+	 *                closed when download ends.
+	 */
+	public static Destination toChannel(FileChannel channel) {
+		return new ChannelDestination(channel);
+	}
+
+	/**
+	 * Stream can't be rewound, so download fails if server can't continue after a transfer error
+	 * instead of starting over.
+	 *
+	 * @param stream stream to write into, not closed when download ends
+	 */
+	public static Destination toStream(OutputStream stream) {
+		return new StreamDestination(stream);
+	}
+
+	/**
+	 * @param bypassCache if true file is only written to this destination, halving the writes.
+	 *                    If false it's also cached so later downloads of the url are served from
+	 *                    cache.
+	 */
+	public void setBypassCache(boolean bypassCache) {
+		this.bypassCache = bypassCache;
+	}
+
+	public boolean isBypassCache() {
+		return bypassCache;
+	}
+
+	/**
+	 * @return destination file, or null if destination is not a file
+	 */
+	public File getFile() {
+		return null;
+	}
+
+	/**
+	 * @return amount of bytes already written to destination
+	 * @throws IOException if size can't be read
+	 */
+	abstract long getStoredLength() throws IOException;
+
+	/**
+	 * Open destination for writing
+	 *
+	 * @param append true to continue after stored bytes, false to start over
+	 * @return stream to write to, closing it releases only what was opened here
+	 * @throws IOException if destination can't be opened or started over
+	 */
+	abstract OutputStream open(boolean append) throws IOException;
+
+	private static class FileDestination extends Destination {
+		private final File file;
+
+		FileDestination(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public File getFile() {
+			return file;
+		}
+
+		@Override
+		long getStoredLength() {
+			return file.length();
+		}
+
+		@Override
+		OutputStream open(boolean append) throws IOException {
+			return new FileOutputStream(file, append);
+		}
+	}
+
+	private static class ChannelDestination extends Destination {
+		private final FileChannel channel;
+
+		ChannelDestination(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		long getStoredLength() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		OutputStream open(boolean append) throws IOException {
+			if (!append)
+				channel.truncate(0);
+			channel.position(channel.size());
+			return new Unclosed(Channels.newOutputStream(channel));
+		}
+	}
+
+	private static class StreamDestination extends Destination {
+		private final OutputStream stream;
+		private long written = 0;
+
+		StreamDestination(OutputStream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		long getStoredLength() {
+			return written;
+		}
+
+		@Override
+		OutputStream open(boolean append) throws IOException {
+			if (!append && written > 0)
+				throw new IOException("output stream can't be rewound");
+			return new Unclosed(stream) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					written += len;
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					written++;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Flushes caller's stream on close, leaving it open
+	 */
+	private static class Unclosed extends FilterOutputStream {
+		Unclosed(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,887 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Files of downloaded urls, with their rows kept in sync with shared {@link CacheIndex}.<br> Keeps
+ * reference to the latest accessed files, drops entries for oldest files automatically. Has no
+ * android dependencies, rows are stored by {@link CacheDatabase}.
+ */
+class DiskCache {
+	/**
+	 * Free space (in bytes) left on the cache volume when admitting a download
+	 */
+	private final static long MIN_FREE_SPACE = 10 * 1024 * 1024;
+
+	private final Shared shared;
+	private final CacheDatabase db;
+	private final File cacheDir;
+	private final int maxCacheSize;
+	private final Executor diskExecutor;
+	private long maxCacheBytes = 0;
+
+	/**
+	 * @param shared       index shared by all caches of the directory
+	 * @param db           rows of the directory
+	 * @param cacheDir     directory of cached files
+	 * @param maxCacheSize max amount of cached files
+	 * @param diskExecutor deletes files that are no longer referenced
+	 */
+	DiskCache(Shared shared, CacheDatabase db, File cacheDir, int maxCacheSize,
+			  Executor diskExecutor) {
+		this.shared = shared;
+		this.db = db;
+		this.cacheDir = cacheDir;
+		this.maxCacheSize = maxCacheSize;
+		this.diskExecutor = diskExecutor;
+	}
+
+	/**
+	 * @param maxCacheBytes max total size of cached files in bytes, 0 for no limit besides free
+	 *                      space
+	 */
+	void setMaxCacheBytes(long maxCacheBytes) {
+		this.maxCacheBytes = maxCacheBytes;
+	}
+
+	/**
+	 * Get cached file for specified url. Urls normalized to the same string share the file.
+	 *
+	 * @param url url to look up
+	 * @return Cached file or null if missing
+	 */
+	synchronized CacheableFile getCachedUrlFile(String url) {
+		CacheableFile cachedFile;
+		String normalized = shared.normalize(url);
+		String key = CacheKeys.hash(normalized);
+		CacheIndex.Entry entry = getIndex().get(key);
+
+		if (entry != null) {
+			File f = new File(cacheDir, entry.filename);
+			updateURLDate(key);
+			cachedFile = new CacheableFile(url, entry, f);
+		} else {
+			cachedFile = insertUrlToCache(url, normalized, key);
+		}
+		return cachedFile;
+	}
+
+	/**
+	 * @return statistics of the shared index, loading it from database on first access
+	 */
+	synchronized CacheStats getStats() {
+		return getIndex().getStats();
+	}
+
+	/**
+	 * Publish fully downloaded part file under its final name and record it as complete, so
+	 * later hits and {@link Shared#peekLoadedFile(String)} don't touch the file system. Part file
+	 * is synced before rename, readers never see a half-written file. If entry was invalidated
+	 * during the download, file is recorded again as a fresh entry.
+	 *
+	 * @param file downloaded file, final length is taken from part file if it's not known
+	 * @throws IOException if part file doesn't match known length, can't be synced or renamed,
+	 *                     or its entry can't be inserted again
+	 */
+	synchronized void commit(CacheableFile file) throws IOException {
+		long size = file.partFile.length();
+		if (file.length > 0 && size != file.length)
+			throw new IOException("expected " + file.length + " bytes, got " + size);
+		sync(file.partFile);
+
+		//entry can't be invalidated between the check and the update
+		synchronized (shared) {
+			CacheIndex index = getIndex();
+			CacheIndex.Entry entry = reinsertIfStale(index, file);
+			if (entry == null)
+				throw new IOException("can't insert invalidated entry again");
+			if (!file.partFile.renameTo(file.file))
+				throw new IOException("can't rename " + file.partFile);
+			//copy of replaced version must not be served from memory
+			onRemoved(file.key);
+			file.length = size;
+			file.external = false;
+			file.complete = true;
+
+			file.ranges = null;
+			file.seed = null;
+
+			index.setLength(entry, size, false);
+			entry.eTag = file.eTag;
+			index.setRanges(entry, null);
+			index.setSeed(entry, null);
+			index.setComplete(entry, true);
+			db.update(entry);
+		}
+	}
+
+	/**
+	 * Record download that was fully written to its destination only. Later loads into a
+	 * destination of the same final length are served without downloading. If entry was
+	 * invalidated during the download, it's recorded again as a fresh entry.
+	 *
+	 * @param file downloaded file, final length is taken from destination if it's not known
+	 * @throws IOException if destination can't report its size
+	 */
+	synchronized void commitExternal(CacheableFile file) throws IOException {
+		if (file.length < 0)
+			file.length = file.getStoredLength();
+		synchronized (shared) {
+			CacheIndex index = getIndex();
+			CacheIndex.Entry entry = reinsertIfStale(index, file);
+			if (entry != null) {
+				//content is only in destination now
+				onRemoved(file.key);
+				file.complete = true;
+				index.setLength(entry, file.length, true);
+				entry.eTag = file.eTag;
+				index.setComplete(entry, true);
+				db.update(entry);
+			}
+		}
+	}
+
+	/**
+	 * Stop serving complete file that is about to be downloaded again
+	 *
+	 * @param file file no longer valid
+	 */
+	synchronized void markIncomplete(CacheableFile file) {
+		file.complete = false;
+		onRemoved(file.key);
+		synchronized (shared) {
+			CacheIndex index = getIndex();
+			CacheIndex.Entry entry = index.get(file.key);
+			if (entry != null) {
+				index.setComplete(entry, false);
+				db.update(entry);
+			}
+		}
+	}
+
+	/**
+	 * Get shared index, reading all rows on first access. Hits counted by {@link
+	 * Shared#peekLoadedFile(String)} since the last access are written to their rows.
+	 *
+	 * @return index of cached entries
+	 */
+	private CacheIndex getIndex() {
+		synchronized (shared) {
+			if (shared.index == null) {
+				CacheIndex loaded = new CacheIndex(shared.evictionPolicy);
+				for (CacheIndex.Entry e : db.readAll()) {
+					loaded.put(e);
+				}
+				shared.indexDir = cacheDir;
+				shared.index = loaded;
+			}
+			saveTouches(shared.index);
+			return shared.index;
+		}
+	}
+
+	/**
+	 * Write date and hits of entries peeked on the main thread, in one transaction
+	 *
+	 * @param index loaded index
+	 */
+	private void saveTouches(CacheIndex index) {
+		if (shared.touchedKeys.isEmpty())
+			return;
+		List<CacheIndex.Entry> touched = new ArrayList<>();
+		Iterator<String> keys = shared.touchedKeys.iterator();
+		while (keys.hasNext()) {
+			CacheIndex.Entry entry = index.get(keys.next());
+			keys.remove();
+			//removed meanwhile, its row is gone too
+			if (entry != null)
+				touched.add(entry);
+		}
+		if (!touched.isEmpty())
+			db.touchAll(touched);
+	}
+
+	/**
+	 * Insert data of partially or fully loaded file into database
+	 *
+	 * @param file CacheableFile with length and etag set
+	 */
+	synchronized void savePartialProgress(CacheableFile file) {
+		synchronized (shared) {
+			CacheIndex index = getIndex();
+			CacheIndex.Entry entry = index.get(file.key);
+			if (!isStale(entry, file)) {
+				index.setLength(entry, file.length, file.external);
+				entry.eTag = file.eTag;
+				db.update(entry);
+			}
+		}
+	}
+
+	/**
+	 * Register prebuilt files in one transaction. Urls already in cache are skipped, so nothing
+	 * downloaded is replaced. Files are linked into cache directory if possible, everything else
+	 * is copied on first load by {@link #materializeSeed(CacheableFile)}.
+	 *
+	 * @param seeds files to register
+	 * @return amount of registered files
+	 */
+	synchronized int importSeeds(Collection<CacheSeed> seeds) {
+		List<CacheIndex.Entry> candidates = new ArrayList<>();
+		Set<String> keys = new HashSet<>();
+		long time = System.currentTimeMillis();
+		//lookups wait until rows and index agree
+		synchronized (shared) {
+			CacheIndex idx = getIndex();
+			for (CacheSeed seed : seeds) {
+				String normalized = shared.normalize(seed.url);
+				String key = CacheKeys.hash(normalized);
+				if (idx.get(key) != null || !keys.add(key))
+					continue;
+				String filename = createFilename(time, seed.url);
+				CacheIndex.Entry e = new CacheIndex.Entry(key, normalized, filename, time);
+				e.length = seed.length;
+				e.eTag = seed.eTag;
+				if (seed.file != null && link(seed.file, new File(cacheDir, filename)))
+					e.complete = true;
+				else
+					e.seed = seed.getSource();
+				candidates.add(e);
+			}
+			List<CacheIndex.Entry> imported;
+			try {
+				imported = db.insertAll(candidates);
+			} catch (RuntimeException e) {
+				for (CacheIndex.Entry c : candidates) {
+					deleteFile(c.filename);
+				}
+				throw e;
+			}
+			Set<CacheIndex.Entry> inserted = new HashSet<>(imported);
+			for (CacheIndex.Entry c : candidates) {
+				if (!inserted.contains(c))
+					deleteFile(c.filename);
+			}
+			for (CacheIndex.Entry e : imported) {
+				idx.put(e);
+			}
+			return imported.size();
+		}
+	}
+
+	/**
+	 * Copy preseeded source into cache and commit it. If source is gone the seed is dropped, so
+	 * the file is downloaded instead.
+	 *
+	 * @param file file with {@link CacheableFile#seed} set
+	 * @return true if file is complete
+	 */
+	synchronized boolean materializeSeed(CacheableFile file) {
+		String seed = file.seed;
+		try {
+			InputStream input = openSeed(seed);
+			try {
+				OutputStream output = new FileOutputStream(file.partFile);
+				try {
+					new FileTransfer().copy(input, output, 0, null);
+				} finally {
+					output.close();
+				}
+			} finally {
+				input.close();
+			}
+			commit(file);
+			return true;
+		} catch (IOException e) {
+			//noinspection ResultOfMethodCallIgnored
+			file.partFile.delete();
+			file.seed = null;
+			synchronized (shared) {
+				CacheIndex index = getIndex();
+				CacheIndex.Entry entry = index.get(file.key);
+				if (entry != null && seed.equals(entry.seed)) {
+					index.setSeed(entry, null);
+					db.update(entry);
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Open sparse file to write fetched ranges into. Opened under the lock of {@link
+	 * #commit(CacheableFile)}, so download committed later replaces the file instead of being
+	 * overwritten by ranges.
+	 *
+	 * @param file sparse file looked up earlier
+	 * @return opened file, or null if entry was invalidated or completed meanwhile
+	 * @throws IOException if file can't be opened
+	 */
+	synchronized RandomAccessFile openSparse(CacheableFile file) throws IOException {
+		synchronized (shared) {
+			CacheIndex.Entry entry = getIndex().get(file.key);
+			if (entry == null || entry.complete || !entry.filename.equals(file.file.getName()))
+				return null;
+			return new RandomAccessFile(file.file, "rw");
+		}
+	}
+
+	/**
+	 * Record stored ranges of sparse file along with its length and validator
+	 *
+	 * @param file sparse file with ranges set
+	 * @return false if entry was invalidated or completed meanwhile, its file is not touched then
+	 */
+	synchronized boolean saveRanges(CacheableFile file) {
+		synchronized (shared) {
+			CacheIndex index = getIndex();
+			CacheIndex.Entry entry = index.get(file.key);
+			if (isStale(entry, file) || entry.complete)
+				return false;
+			index.setLength(entry, file.length);
+			entry.eTag = file.eTag;
+			index.setRanges(entry, new ByteRanges(file.ranges));
+			db.update(entry);
+			return true;
+		}
+	}
+
+	/**
+	 * Delete part file of abandoned download, unless the url was looked up again by newer task
+	 * that continues the same file. Whoever abandoned the download invalidates the entry anyway.
+	 *
+	 * @param file file of cancelled download
+	 */
+	synchronized void discard(CacheableFile file) {
+		synchronized (shared) {
+			isStale(getIndex().get(file.key), file);
+		}
+	}
+
+	/**
+	 * Check if entry was invalidated or evicted after file was looked up. Files of such a file
+	 * are no longer referenced and are deleted, unless another download still writes them. Call
+	 * while holding the lock of shared index.
+	 *
+	 * @param entry current entry of the url, null if its row was removed
+	 * @param file  file looked up earlier
+	 * @return true if the file must not be recorded
+	 */
+	private boolean isStale(CacheIndex.Entry entry, CacheableFile file) {
+		if (entry != null && entry.filename.equals(file.file.getName()))
+			return false;
+		//invalidation left them to the last download writing them
+		if (getWriters(file.file.getName()) <= 1) {
+			//noinspection ResultOfMethodCallIgnored
+			file.partFile.delete();
+			//noinspection ResultOfMethodCallIgnored
+			file.file.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Get entry to record finished download in. Entry invalidated or evicted during the download
+	 * is replaced by a fresh one referencing the downloaded file, as if the url was just
+	 * inserted. File referenced by the replaced entry is deleted, unless a download writes it.
+	 * Call while holding the lock of shared index.
+	 *
+	 * @param index loaded index
+	 * @param file  finished download
+	 * @return entry of the file, or null if its row can't be inserted again
+	 */
+	private CacheIndex.Entry reinsertIfStale(CacheIndex index, CacheableFile file) {
+		CacheIndex.Entry entry = index.get(file.key);
+		String filename = file.file.getName();
+		if (entry != null && entry.filename.equals(filename))
+			return entry;
+		long time = System.currentTimeMillis();
+		if (entry == null) {
+			entry = new CacheIndex.Entry(file.key, shared.normalize(file.url), filename, time);
+			if (!db.insert(entry))
+				return null;
+			index.put(entry);
+			return entry;
+		}
+		String replaced = entry.filename;
+		entry.filename = filename;
+		index.reset(entry, time);
+		db.update(entry);
+		if (getWriters(replaced) == 0)
+			deleteFile(replaced);
+		return entry;
+	}
+
+	/**
+	 * Register download writing the file. Invalidation and eviction leave files of registered
+	 * downloads in place, so they can be committed as fresh entries. Every call must be followed
+	 * by {@link #endWrite(CacheableFile)}.
+	 *
+	 * @param file file looked up by the download
+	 */
+	void beginWrite(CacheableFile file) {
+		String filename = file.file.getName();
+		synchronized (shared) {
+			Integer writers = shared.writers.get(filename);
+			shared.writers.put(filename, writers != null ? writers + 1 : 1);
+		}
+	}
+
+	/**
+	 * @param file file whose download ended, after it was committed or its progress saved
+	 */
+	void endWrite(CacheableFile file) {
+		String filename = file.file.getName();
+		synchronized (shared) {
+			Integer writers = shared.writers.get(filename);
+			if (writers == null || writers <= 1)
+				shared.writers.remove(filename);
+			else
+				shared.writers.put(filename, writers - 1);
+		}
+	}
+
+	/**
+	 * @param filename name of cached file
+	 * @return amount of registered downloads writing the file
+	 */
+	private int getWriters(String filename) {
+		synchronized (shared) {
+			Integer writers = shared.writers.get(filename);
+			return writers != null ? writers : 0;
+		}
+	}
+
+	/**
+	 * Delete files of removed entries on disk executor, keeping files that downloads still write
+	 *
+	 * @param removed entries removed from index and database
+	 */
+	private void deleteFiles(List<CacheIndex.Entry> removed) {
+		final List<String> filenames = new ArrayList<>();
+		synchronized (shared) {
+			for (CacheIndex.Entry e : removed) {
+				if (getWriters(e.filename) == 0)
+					filenames.add(e.filename);
+			}
+		}
+		if (filenames.isEmpty())
+			return;
+		diskExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (String filename : filenames) {
+					deleteFile(filename);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Save new url in db
+	 *
+	 * @param url        new url inserted into database
+	 * @param normalized url normalized by {@link Shared#normalize(String)}
+	 * @param key        key of the row
+	 * @return filename to create that will be referenced by this entry
+	 */
+	private CacheableFile insertUrlToCache(String url, String normalized, String key) {
+		CacheableFile retFile = null;
+		long time = System.currentTimeMillis();
+		String filename = createFilename(time, url);
+		CacheIndex.Entry entry = new CacheIndex.Entry(key, normalized, filename, time);
+
+		CacheIndex index = getIndex();
+		index.countMiss();
+		if (db.insert(entry)) {
+			File f = new File(cacheDir, filename);
+			retFile = new CacheableFile(url, key, f);
+			index.put(entry);
+		}
+		flushOldEntries(key);
+		return retFile;
+	}
+
+	/**
+	 * Update date and count a hit for entry that already existed
+	 *
+	 * @param key updated rows key
+	 */
+	private void updateURLDate(String key) {
+		long time = System.currentTimeMillis();
+		getIndex().touch(key, time);
+		db.touch(key, time);
+	}
+
+	/**
+	 * Flush all old entries from db and disk
+	 *
+	 * @param keepKey key of entry just inserted, never evicted to make room for itself
+	 */
+	private void flushOldEntries(String keepKey) {
+		final List<CacheIndex.Entry> evicted = getIndex().evict(maxCacheSize, keepKey);
+		if (evicted.isEmpty())
+			return;
+		for (CacheIndex.Entry e : evicted) {
+			deleteEntry(e.key);
+		}
+		AggregateMetrics.recordEvictions(evicted.size());
+		//files are no longer referenced, don't hold up current task deleting them
+		deleteFiles(evicted);
+	}
+
+	/**
+	 * Evict complete entries chosen by eviction policy until file of given size fits both the free
+	 * space of the cache volume and the cache byte budget. Nothing is evicted if the file can't fit
+	 * even after evicting all of them, part files of other downloads are never evicted.
+	 *
+	 * @param file   file about to be downloaded, never evicted
+	 * @param length expected final length of the file
+	 * @param needed bytes left to write
+	 * @return true if there is room, false if it cannot fit even after evicting everything else
+	 */
+	synchronized boolean makeRoom(CacheableFile file, long length, long needed) {
+		CacheIndex idx = getIndex();
+		CacheIndex.Entry own = idx.get(file.key);
+		long evictable = idx.getCompleteBytes() - (own != null && own.isCached() ? own.getBytes() : 0);
+		if (!hasRoom(idx, file.key, length, needed, evictable))
+			return false;
+		int evicted = 0;
+		while (!hasRoom(idx, file.key, length, needed, 0)) {
+			CacheIndex.Entry e = idx.evictEldestComplete(file.key);
+			if (e == null)
+				break;
+			deleteEntry(e.key);
+			//space is needed right now, delete on this thread
+			deleteFile(e.filename);
+			evicted++;
+		}
+		AggregateMetrics.recordEvictions(evicted);
+		return hasRoom(idx, file.key, length, needed, 0);
+	}
+
+	/**
+	 * @param freed bytes that would be freed by evicting other entries
+	 */
+	private boolean hasRoom(CacheIndex idx, String key, long length, long needed, long freed) {
+		if (cacheDir.getUsableSpace() + freed - MIN_FREE_SPACE < needed)
+			return false;
+		if (maxCacheBytes <= 0)
+			return true;
+		CacheIndex.Entry own = idx.get(key);
+		long others = idx.getTotalBytes() - (own != null ? own.getBytes() : 0);
+		return others - freed + length <= maxCacheBytes;
+	}
+
+	/**
+	 * Delete cached URLs file and from database. Downloads still writing the file are not
+	 * stopped, they record it as a fresh entry when they complete, see {@link
+	 * #commit(CacheableFile)}.
+	 *
+	 * @param url url of cached file, every url normalized the same way is invalidated with it
+	 */
+	synchronized void invalidateCachedEntry(String url) {
+		String key = shared.getKey(url);
+		synchronized (shared) {
+			CacheIndex.Entry entry = getIndex().get(key);
+			if (entry != null && getWriters(entry.filename) == 0)
+				deleteFile(entry.filename);
+			invalidateRow(key, url);
+		}
+	}
+
+	/**
+	 * Remove entries of all urls accepted by filter, with their derived variants, in one
+	 * transaction. Files are deleted on disk executor afterwards. Downloads still writing them
+	 * are not stopped, they record their file as a fresh entry when they complete.
+	 *
+	 * @param filter tested with normalized url of original file of every entry
+	 * @return amount of removed entries
+	 */
+	synchronized int invalidateCachedEntries(final CacheFilter filter) {
+		synchronized (shared) {
+			List<CacheIndex.Entry> removed = getIndex().removeAll(new CacheFilter() {
+				@Override
+				public boolean accept(String key) {
+					return filter.accept(CacheKeys.getOriginalUrl(key));
+				}
+			});
+			if (removed.isEmpty())
+				return 0;
+			for (CacheIndex.Entry e : removed) {
+				onRemoved(e.key);
+			}
+			db.deleteAll(removed);
+			deleteFiles(removed);
+			return removed.size();
+		}
+	}
+
+	/**
+	 * Invalidate cached Row
+	 *
+	 * @param key updated rows key
+	 * @param url url of cached file, gives extension of new filename
+	 */
+	private void invalidateRow(String key, String url) {
+		onRemoved(key);
+		long time = System.currentTimeMillis();
+		String filename = createFilename(time, url);
+		//new filename marks files of tasks still running as stale, see isStale
+		synchronized (shared) {
+			CacheIndex index = getIndex();
+			CacheIndex.Entry entry = index.get(key);
+			if (entry != null) {
+				entry.filename = filename;
+				index.reset(entry, time);
+				db.update(entry);
+			}
+		}
+	}
+
+	/**
+	 * Delete an entry from database
+	 *
+	 * @param key key of row
+	 */
+	private void deleteEntry(String key) {
+		onRemoved(key);
+		db.delete(key);
+	}
+
+	/**
+	 * Delete file and its part file
+	 *
+	 * @param filename name of file residing in apps cache
+	 */
+	private void deleteFile(String filename) {
+		File f = new File(cacheDir, filename);
+		//noinspection ResultOfMethodCallIgnored
+		f.delete();
+		//noinspection ResultOfMethodCallIgnored
+		CacheableFile.getPartFile(f).delete();
+	}
+
+	void close() {
+		db.close();
+	}
+
+	/**
+	 * Called when file of entry is removed or replaced, eg. to drop its copy held in memory
+	 *
+	 * @param key key of the entry
+	 */
+	protected void onRemoved(String key) {
+	}
+
+	/**
+	 * Open preseeded source, override to read sources other than files
+	 *
+	 * @param source source from {@link CacheSeed#getSource()}
+	 * @return stream of the source
+	 * @throws IOException if source is gone
+	 */
+	protected InputStream openSeed(String source) throws IOException {
+		if (!source.startsWith(CacheSeed.SOURCE_FILE))
+			throw new IOException("unsupported seed " + source);
+		return new FileInputStream(source.substring(CacheSeed.SOURCE_FILE.length()));
+	}
+
+	/**
+	 * Make file available under second name without copying it, override where file system
+	 * supports hard links
+	 *
+	 * @param source existing file
+	 * @param link   new name, must not exist
+	 * @return true if link was created
+	 */
+	protected boolean link(File source, File link) {
+		return false;
+	}
+
+	/**
+	 * @param time creation time
+	 * @param url  url of the file, gives its extension
+	 * @return name of new file, unique for every file created within the same millisecond
+	 */
+	private String createFilename(long time, String url) {
+		String name = time + "-" + shared.sequence.getAndIncrement();
+		String ext = getExtension(url);
+		return ext != null ? name + "." + ext : name;
+	}
+
+	/**
+	 * Rip extension from last segment of url path
+	 *
+	 * @param path url or path with extension
+	 * @return lowercased extension (without dot) or null if last segment has no dot to start
+	 * reading from
+	 */
+	static String getExtension(String path) {
+		int end = path.length();
+		int query = path.indexOf('?');
+		if (query >= 0)
+			end = query;
+		int fragment = path.indexOf('#');
+		if (fragment >= 0 && fragment < end)
+			end = fragment;
+		String segment = path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+		if (segment.lastIndexOf('.') == -1)
+			return null;
+		String ext = segment.substring(segment.lastIndexOf('.') + 1);
+		ext = ext.replace("jpg", "jpeg").toLowerCase();
+		return ext;
+	}
+
+	/**
+	 * Flush written contents of file to storage device
+	 *
+	 * @param file file to sync
+	 * @throws IOException if file can't be opened or synced
+	 */
+	private static void sync(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Index and settings shared by all caches of one directory. Its lock is held while index
+	 * loads and while rows and index are changed together.
+	 */
+	static class Shared {
+		/**
+		 * Loaded from database on first access. Published only after all rows were read, so
+		 * lookups on the main thread can read it without the lock.
+		 */
+		private volatile CacheIndex index;
+		/**
+		 * Directory of files referenced by {@link #index}, set before index is published
+		 */
+		private volatile File indexDir;
+		private EvictionPolicy evictionPolicy = new EvictionPolicy.Lru();
+		private volatile UrlNormalizer urlNormalizer = new UrlNormalizer.Default();
+		/**
+		 * Tells apart files created within the same millisecond
+		 */
+		private final AtomicInteger sequence = new AtomicInteger();
+		/**
+		 * Keys of entries touched by {@link #peekLoadedFile(String)}, whose rows are not updated
+		 * yet. Written with the next access of any cache sharing the index.
+		 */
+		private final Set<String> touchedKeys =
+				Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		/**
+		 * Amount of running downloads writing each file, by filename. Guarded by this lock.
+		 */
+		private final Map<String, Integer> writers = new HashMap<>();
+
+		/**
+		 * Replace policy used by all caches, existing entries are reordered
+		 *
+		 * @param policy new eviction policy
+		 */
+		synchronized void setEvictionPolicy(EvictionPolicy policy) {
+			evictionPolicy = policy;
+			if (index != null)
+				index.setPolicy(policy);
+		}
+
+		/**
+		 * Replace normalizer used by all caches. Entries cached under urls normalized
+		 * differently are not found anymore and are evicted over time.
+		 *
+		 * @param normalizer new url normalizer
+		 */
+		void setUrlNormalizer(UrlNormalizer normalizer) {
+			urlNormalizer = normalizer;
+		}
+
+		/**
+		 * @param name url or derived key, see {@link CacheKeys#getDerivedKey(String, List)}
+		 * @return normalized url, followed by keys of transforms of derived key
+		 */
+		String normalize(String name) {
+			return CacheKeys.normalize(name, urlNormalizer);
+		}
+
+		/**
+		 * Get key of the row caching url
+		 *
+		 * @param name url or derived key, see {@link CacheKeys#getDerivedKey(String, List)}
+		 * @return key of the row
+		 */
+		String getKey(String name) {
+			return CacheKeys.hash(normalize(name));
+		}
+
+		/**
+		 * Look up file in memory only, without touching the database or file system. Safe to
+		 * call on the main thread. Hit and access date are written to the row with the next
+		 * access of any cache, so peeked files are evicted like loaded ones even after restart.
+		 *
+		 * @param url url to look up
+		 * @return complete file or null if it's not known to be fully downloaded, or index was
+		 * not loaded by any background task yet
+		 */
+		File peekLoadedFile(String url) {
+			//lock is held while index loads and during database writes, don't wait for it
+			CacheIndex idx = index;
+			File dir = indexDir;
+			if (idx == null)
+				return null;
+			CacheIndex.Entry entry = idx.touchIfComplete(getKey(url), System.currentTimeMillis());
+			if (entry == null)
+				return null;
+			touchedKeys.add(entry.key);
+			return new File(dir, entry.filename);
+		}
+
+		/**
+		 * Check in memory only if url has complete file, without counting a hit. Lets loads be
+		 * routed without the lookup being counted twice. Safe to call on the main thread.
+		 *
+		 * @param url url to look up
+		 * @return true if file is known to be fully downloaded, false if it's not or index was
+		 * not loaded by any background task yet
+		 */
+		boolean isLoaded(String url) {
+			CacheIndex idx = index;
+			if (idx == null)
+				return false;
+			CacheIndex.Entry entry = idx.get(getKey(url));
+			return entry != null && entry.isCached();
+		}
+
+		/**
+		 * Read statistics in memory only, safe to call on the main thread
+		 *
+		 * @return statistics or null if index was not loaded by any background task yet
+		 */
+		CacheStats peekStats() {
+			CacheIndex idx = index;
+			return idx != null ? idx.getStats() : null;
+		}
+	}
+}
@@ -0,0 +1,545 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads single url through the cache: returns complete cached file, continues partial one or
+ * downloads it from scratch, retrying failed attempts, and commits the result.<br> Has no android
+ * dependencies, {@code LoaderTask} runs it on a loader thread and maps its failures to error
+ * codes.
+ */
+class DownloadJob {
+	private final String url;
+	private final ContentSource source;
+	private final FileTransfer transfer;
+	private final DownloadMetrics metrics;
+	private final Listener listener;
+
+	private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+	private Destination destination;
+	private List<Transform> transforms = Collections.emptyList();
+
+	private long fileLength;
+	private long restoredProgress;
+	private long attemptBytes;
+	private boolean isResumed;
+	private boolean isOutOfSpace;
+	/**
+	 * Stream being copied, closed from other thread to abort blocked read
+	 */
+	private volatile InputStream activeInput;
+
+	private final FileTransfer.Listener transferListener = new FileTransfer.Listener() {
+		@Override
+		public boolean isStopped() {
+			return listener.isStopped();
+		}
+
+		@Override
+		public void onProgress(long current) {
+			metrics.markFirstByte();
+			if (source.isNetwork())
+				metrics.networkBytes = attemptBytes + current - restoredProgress;
+			else
+				metrics.contentBytes = attemptBytes + current - restoredProgress;
+			if (fileLength > 0) // only if total length is known
+				listener.onProgress(current, fileLength);
+		}
+	};
+
+	/**
+	 * @param url      url of the file, key of its cache entry
+	 * @param source   input of the file
+	 * @param transfer copy loop, configured by caller
+	 * @param metrics  metrics of the job, filled in as it runs
+	 * @param listener decides when to stop and receives progress
+	 */
+	DownloadJob(String url, ContentSource source, FileTransfer transfer, DownloadMetrics metrics,
+				Listener listener) {
+		this.url = url;
+		this.source = source;
+		this.transfer = transfer;
+		this.metrics = metrics;
+		this.listener = listener;
+	}
+
+	/**
+	 * @param retryPolicy policy deciding which failed attempts are continued
+	 */
+	void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @param destination target written instead of the cache file, null to download into cache
+	 */
+	void setDestination(Destination destination) {
+		this.destination = destination;
+	}
+
+	Destination getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Transforms are not applied to downloads into a {@link Destination}
+	 *
+	 * @param transforms stages applied in order to downloaded bytes, result is cached and
+	 *                   returned instead of original file
+	 */
+	void setTransforms(List<Transform> transforms) {
+		this.transforms = transforms;
+	}
+
+	List<Transform> getTransforms() {
+		return transforms;
+	}
+
+	/**
+	 * @return cache key of the result, see {@link CacheKeys#getDerivedKey(String, List)}
+	 */
+	String getResultKey() {
+		return isTransformed() ? CacheKeys.getDerivedKey(url, transforms) : url;
+	}
+
+	/**
+	 * @return true if result is derived variant of downloaded file
+	 */
+	private boolean isTransformed() {
+		return !transforms.isEmpty() && destination == null;
+	}
+
+	/**
+	 * @return true if last run ended because file can't fit into the cache
+	 */
+	boolean isOutOfSpace() {
+		return isOutOfSpace;
+	}
+
+	/**
+	 * Drop cached file of the url and of its derived variant. Files of the previous job are
+	 * renamed away, so its late writes can't reach the new download.
+	 */
+	void invalidate(DiskCache cache) {
+		cache.invalidateCachedEntry(url);
+		if (!transforms.isEmpty())
+			cache.invalidateCachedEntry(CacheKeys.getDerivedKey(url, transforms));
+	}
+
+	/**
+	 * Serve the file from cache or load it, on calling thread
+	 *
+	 * @param cache opened cache, not closed by the job
+	 * @return loaded file, or null if job was stopped, source failed or file doesn't fit
+	 * @throws Exception error of the last attempt if it can't be retried
+	 */
+	CacheableFile run(DiskCache cache) throws Exception {
+		CacheableFile imageFile = null;
+		CacheableFile derived = null;
+		isOutOfSpace = false;
+		try {
+			if (isTransformed()) {
+				//processed variant skips both download and processing
+				derived = cache.getCachedUrlFile(CacheKeys.getDerivedKey(url, transforms));
+				cache.beginWrite(derived);
+				if (derived.isLoaded() && source.isCacheValid(derived)) {
+					metrics.cacheResult = DownloadMetrics.CACHE_HIT;
+					metrics.diskBytes = derived.length;
+					listener.onLoaded(derived);
+					return derived;
+				}
+			}
+			//get cached image or image to save stream to, if it's loaded return it instead
+			imageFile = cache.getCachedUrlFile(url);
+			cache.beginWrite(imageFile);
+			imageFile.destination = destination;
+			if (imageFile.seed != null && !imageFile.complete)
+				cache.materializeSeed(imageFile); //bundled copy, no download
+			if (imageFile.isLoaded() && source.isCacheValid(imageFile)) {
+				metrics.cacheResult = DownloadMetrics.CACHE_HIT;
+				metrics.diskBytes = destination != null ? imageFile.getStoredLength() :
+						imageFile.length;
+				listener.onLoaded(imageFile);
+				return derive(cache, imageFile, derived, false);
+			}
+			if (imageFile.isCachedCopyLoaded() && source.isCacheValid(imageFile)) {
+				//destination is filled from cache without touching the network
+				if (!copyCachedFile(imageFile))
+					return null;
+				metrics.cacheResult = DownloadMetrics.CACHE_HIT;
+				metrics.diskBytes = imageFile.length;
+				listener.onLoaded(imageFile);
+				return imageFile;
+			}
+			if (imageFile.complete)
+				cache.markIncomplete(imageFile); //source changed, stop serving old copy
+
+			// start downloading the file, continuing from written bytes on retry
+			final DiskCache attemptCache = cache;
+			final CacheableFile attemptFile = imageFile;
+			final CacheableFile attemptDerived = derived;
+			boolean isComplete = new RetryLoop(retryPolicy) {
+				@Override
+				protected boolean attempt(int failedAttempts) throws Exception {
+					return transferFile(attemptCache, attemptFile, attemptDerived, failedAttempts);
+				}
+
+				@Override
+				protected boolean isStopped() {
+					return listener.isStopped();
+				}
+
+				@Override
+				protected void onRetry(int failedAttempts) {
+					metrics.retryCount++;
+					//release connection of failed attempt
+					source.release();
+				}
+			}.run();
+			if (!isComplete)
+				return null;
+			if (source.isNetwork())
+				metrics.cacheResult = isResumed ? DownloadMetrics.CACHE_RESUMED :
+						DownloadMetrics.CACHE_MISS;
+			//keep length and validator of complete file so later hits can be verified
+			if (imageFile.external)
+				cache.commitExternal(imageFile);
+			else
+				cache.commit(imageFile);
+			listener.onLoaded(imageFile);
+			//transforms ran during the download only if it started from scratch
+			return derive(cache, imageFile, derived, !imageFile.partIsValid);
+		} finally {
+			try {
+				if (imageFile != null) {
+					if (listener.isCancelled()) {
+						//delete both here and from cache manager
+						//since otherwise we miss some when mashing refresh button,
+						//unless file was already taken over by the next task
+						cache.discard(imageFile);
+					} else if (imageFile.isPartiallyLoaded()) {
+						cache.savePartialProgress(imageFile);
+					}
+				}
+			} catch (Exception ignored) {
+			}
+			if (imageFile != null)
+				cache.endWrite(imageFile);
+			if (derived != null)
+				cache.endWrite(derived);
+			source.release();
+		}
+	}
+
+	/**
+	 * Close stream being copied and let the source drop its connection, so blocked read
+	 * returns right away. Safe to call from any thread.
+	 */
+	void abort() {
+		InputStream input = activeInput;
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException ignored) {
+			}
+		}
+		source.abort();
+	}
+
+	/**
+	 * Complete derived variant of downloaded file, running transforms over cached file unless its
+	 * bytes already streamed through them
+	 *
+	 * @param imageFile complete original file
+	 * @param derived   empty derived variant, null if there are no transforms
+	 * @param streamed  true if derived file was written during the download
+	 * @return derived file, original file if there are no transforms, or null if job was stopped
+	 * @throws IOException if reading, processing or writing fails
+	 */
+	private CacheableFile derive(DiskCache cache, CacheableFile imageFile,
+								 CacheableFile derived, boolean streamed) throws IOException {
+		if (derived == null)
+			return imageFile;
+		if (!streamed) {
+			boolean isComplete = false;
+			FileInputStream input = new FileInputStream(imageFile.file);
+			try {
+				OutputStream output = openTransforms(derived);
+				boolean isCopied;
+				try {
+					isCopied = transfer.copy(input, output, 0, new FileTransfer.Listener() {
+						@Override
+						public boolean isStopped() {
+							return listener.isStopped();
+						}
+
+						@Override
+						public void onProgress(long current) {
+						}
+					});
+				} finally {
+					output.close();
+				}
+				isComplete = isCopied;
+			} finally {
+				input.close();
+				if (!isComplete)
+					//noinspection ResultOfMethodCallIgnored
+					derived.partFile.delete();
+			}
+			if (!isComplete)
+				return null;
+		}
+		//derived variant is valid as long as original is, its length is whatever transforms made
+		derived.length = -1;
+		derived.eTag = imageFile.eTag;
+		cache.commit(derived);
+		listener.onLoaded(derived);
+		return derived;
+	}
+
+	/**
+	 * @param derived derived variant to write
+	 * @return stream receiving original bytes, transformed by all stages into derived file
+	 * @throws IOException if file can't be opened or stage can't start
+	 */
+	private OutputStream openTransforms(CacheableFile derived) throws IOException {
+		OutputStream output = new FileOutputStream(derived.partFile);
+		try {
+			for (int i = transforms.size() - 1; i >= 0; i--) {
+				output = transforms.get(i).open(output);
+			}
+		} catch (IOException e) {
+			output.close();
+			throw e;
+		}
+		return output;
+	}
+
+	/**
+	 * Copy complete cached file into destination
+	 *
+	 * @return true if file was copied, false if job was stopped
+	 * @throws IOException if reading or writing fails
+	 */
+	private boolean copyCachedFile(final CacheableFile imageFile) throws IOException {
+		FileTransfer.Listener copyListener = new FileTransfer.Listener() {
+			@Override
+			public boolean isStopped() {
+				return listener.isStopped();
+			}
+
+			@Override
+			public void onProgress(long current) {
+				listener.onProgress(current, imageFile.length);
+			}
+		};
+		FileInputStream input = new FileInputStream(imageFile.file);
+		try {
+			OutputStream output = imageFile.destination.open(false);
+			try {
+				if (output instanceof FileOutputStream)
+					return transfer.copy(input.getChannel(), 0, -1,
+							((FileOutputStream) output).getChannel(), 0, copyListener);
+				return transfer.copy(input, output, 0, copyListener);
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Single attempt to open the input and copy it into cached file
+	 *
+	 * @param cache          opened cache, used to make room for the file
+	 * @param imageFile      cached file, continued if source validates its part
+	 * @param derived        derived variant written along when download starts from scratch,
+	 *                       null if there are no transforms
+	 * @param failedAttempts amount of previous attempts of this job
+	 * @return true if file is complete, false if job stopped or source failed
+	 * @throws Exception anything thrown while opening or copying
+	 */
+	private boolean transferFile(DiskCache cache, CacheableFile imageFile,
+								 CacheableFile derived, int failedAttempts) throws Exception {
+		InputStream input = null;
+		OutputStream output = null;
+		FileOutputStream fileOutput = null;
+		boolean isPreallocated = false;
+		boolean isStreamed = false;
+		boolean isComplete = false;
+		try {
+			//validity is decided again by each opened input
+			imageFile.partIsValid = false;
+			input = source.open(imageFile);
+			if (input == null)
+				return false;
+			activeInput = input;
+			if (listener.isStopped())
+				return false;
+
+			long downloadProgress = 0;
+			//restore previous download progress
+			if (imageFile.partIsValid) {
+				downloadProgress = imageFile.getStoredLength();
+				if (failedAttempts == 0) {
+					isResumed = true;
+					metrics.diskBytes = downloadProgress;
+				}
+			}
+			restoredProgress = downloadProgress;
+			attemptBytes = source.isNetwork() ? metrics.networkBytes : metrics.contentBytes;
+			fileLength = imageFile.length;
+
+			//cache copy of destination can only grow along with it
+			Destination destination = imageFile.destination;
+			boolean isCached = destination == null || (!destination.isBypassCache()
+					&& (downloadProgress == 0 || imageFile.partFile.length() == downloadProgress));
+			imageFile.external = !isCached;
+
+			//fail before writing anything if file can't fit
+			if (isCached && fileLength > 0 && !cache.makeRoom(imageFile, fileLength,
+					fileLength - downloadProgress)) {
+				isOutOfSpace = true;
+				return false;
+			}
+
+			if (destination == null) {
+				output = new FileOutputStream(imageFile.partFile, imageFile.partIsValid);
+			} else if (isCached) {
+				OutputStream cached = new FileOutputStream(imageFile.partFile, imageFile.partIsValid);
+				try {
+					output = new TeeOutputStream(destination.open(imageFile.partIsValid), cached);
+				} catch (IOException e) {
+					cached.close();
+					throw e;
+				}
+			} else {
+				//noinspection ResultOfMethodCallIgnored
+				imageFile.partFile.delete();
+				//noinspection ResultOfMethodCallIgnored
+				imageFile.file.delete();
+				output = destination.open(imageFile.partIsValid);
+			}
+			if (output instanceof FileOutputStream)
+				fileOutput = (FileOutputStream) output;
+			if (!imageFile.partIsValid && fileOutput != null)
+				isPreallocated = listener.preallocate(fileOutput, fileLength);
+			if (derived != null && !imageFile.partIsValid) {
+				//transforms run on the bytes as they are written, so result needs no second pass
+				output = new TeeOutputStream(output, openTransforms(derived));
+				isStreamed = true;
+			}
+
+			if (failedAttempts == 0)
+				metrics.markTransferStarted();
+			isComplete = source.copy(transfer, input, output, downloadProgress, transferListener);
+			if (isComplete && isPreallocated && fileOutput.getChannel().position() < fileLength)
+				throw new IOException("unexpected end of stream");
+			if (isComplete && isStreamed) {
+				//closing finishes the transforms, their failure fails the download
+				OutputStream closed = output;
+				output = null;
+				closed.close();
+			}
+			return isComplete;
+		} finally {
+			activeInput = null;
+			try {
+				if (output != null) {
+					//partial file length must match written bytes so it can be continued
+					if (isPreallocated && !isComplete)
+						fileOutput.getChannel().truncate(fileOutput.getChannel().position());
+					output.close();
+				}
+				if (input != null)
+					input.close();
+			} catch (Exception ignored) {
+			}
+			if (isStreamed && !isComplete)
+				//noinspection ResultOfMethodCallIgnored
+				derived.partFile.delete();
+		}
+	}
+
+	/**
+	 * Decides when the job stops and receives its progress
+	 */
+	interface Listener {
+		/**
+		 * @return true if result is no longer needed
+		 */
+		boolean isStopped();
+
+		/**
+		 * @return true if download was abandoned, its part file is dropped instead of being kept
+		 * for later
+		 */
+		boolean isCancelled();
+
+		/**
+		 * @param current amount of bytes of the file stored so far
+		 * @param length  final length of the file, known and positive
+		 */
+		void onProgress(long current, long length);
+
+		/**
+		 * Called with complete file that is about to be returned
+		 */
+		void onLoaded(CacheableFile file);
+
+		/**
+		 * Reserve disk blocks for file of known length, see {@code Util.preallocate}
+		 *
+		 * @return true if space was reserved
+		 */
+		boolean preallocate(FileOutputStream output, long length);
+	}
+
+	/**
+	 * Writes two streams at once, destination and its cache copy or cache file and transforms
+	 */
+	private static class TeeOutputStream extends FilterOutputStream {
+		private final OutputStream copy;
+
+		TeeOutputStream(OutputStream out, OutputStream copy) {
+			super(out);
+			this.copy = copy;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			copy.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			copy.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+			copy.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				out.close();
+			} finally {
+				copy.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package paszkiewicz.webfiledownloader;
+
+/**
+ * Timings and byte counts of a single download, delivered to {@link Listener} when the download
+ * task ends.<br> Durations are in milliseconds and are -1 if that stage was never reached.
+ */
+public class DownloadMetrics {
+	/**
+	 * Task failed, was cancelled or read content without caching it
+	 */
+	public final static int CACHE_NONE = -1;
+	/**
+	 * File was not cached and had to be downloaded from scratch
+	 */
+	public final static int CACHE_MISS = 0;
+	/**
+	 * File was complete in cache
+	 */
+	public final static int CACHE_HIT = 1;
+	/**
+	 * Partially cached file was continued
+	 */
+	public final static int CACHE_RESUMED = 2;
+
+	public final String url;
+
+	int cacheResult = CACHE_NONE;
+	long networkBytes;
+	long contentBytes;
+	long diskBytes;
+	long discardedBytes;
+	int retryCount;
+	int hedgedRequests;
+	int errorCode;
+
+	// System.nanoTime() marks, 0 if not reached
+	private long startTime;
+	private long headersTime;
+	private long firstByteTime;
+	private long transferStartTime;
+	private long endTime;
+
+	DownloadMetrics(String url) {
+		this.url = url;
+	}
+
+	void markStarted() {
+		startTime = System.nanoTime();
+	}
+
+	void markHeadersReceived() {
+		headersTime = System.nanoTime();
+	}
+
+	void markFirstByte() {
+		if (firstByteTime == 0)
+			firstByteTime = System.nanoTime();
+	}
+
+	void markTransferStarted() {
+		transferStartTime = System.nanoTime();
+	}
+
+	void markFinished() {
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * @return one of {@link #CACHE_MISS}, {@link #CACHE_HIT} or {@link #CACHE_RESUMED} for
+	 * completed tasks, {@link #CACHE_NONE} otherwise. Miss and resume are only reported for
+	 * downloads from network.
+	 */
+	public int getCacheResult() {
+		return cacheResult;
+	}
+
+	/** Time from task start until server responded with headers, including any redirects. */
+	public long getTimeToHeaders() {
+		return elapsed(startTime, headersTime);
+	}
+
+	/** Time from task start until first byte of the file was received. */
+	public long getTimeToFirstByte() {
+		return elapsed(startTime, firstByteTime);
+	}
+
+	/** Time spent copying the file into cache. */
+	public long getTransferDuration() {
+		return elapsed(transferStartTime, endTime);
+	}
+
+	/** Time from task start until it ended. */
+	public long getTotalDuration() {
+		return elapsed(startTime, endTime);
+	}
+
+	/** Bytes received from the network by this task. */
+	public long getNetworkBytes() {
+		return networkBytes;
+	}
+
+	/** Bytes copied from content provider by this task. */
+	public long getContentBytes() {
+		return contentBytes;
+	}
+
+	/** Bytes served from cache: whole file on hit, restored part on resume. */
+	public long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/** Previously cached bytes that had to be downloaded again. */
+	public long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	/** Amount of times transfer was retried after a failure. */
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	/** Amount of mirror requests started because earlier requests were slow to respond. */
+	public int getHedgedRequests() {
+		return hedgedRequests;
+	}
+
+	/** Error string resource of failed download, 0 if it succeeded. */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	private static long elapsed(long from, long to) {
+		if (from == 0 || to == 0)
+			return -1;
+		return (to - from) / 1000000L;
+	}
+
+	/**
+	 * Receives metrics of finished downloads. Called on the download thread, so implementation
+	 * should return quickly.
+	 */
+	public interface Listener {
+		void onDownloadFinished(DownloadMetrics metrics);
+	}
+}
@@ -0,0 +1,71 @@
+package paszkiewicz.webfiledownloader;
+
+/**
+ * Decides which cached files are evicted first.<br> Priority of an entry is recomputed whenever
+ * it's accessed or its size changes, entries with lowest priority are evicted first. Ties are
+ * broken by least recent change.
+ */
+public interface EvictionPolicy {
+	/**
+	 * @param hits       amount of cache hits of the entry since it was added
+	 * @param size       size of the entry in bytes, -1 if not known yet
+	 * @param accessTime time of the latest access in milliseconds
+	 * @return priority of the entry
+	 */
+	double getPriority(long hits, long size, long accessTime);
+
+	/**
+	 * Called after entry was evicted
+	 *
+	 * @param priority priority of evicted entry
+	 */
+	void onEvicted(double priority);
+
+	/**
+	 * Least recently used entries are evicted first
+	 */
+	class Lru implements EvictionPolicy {
+		@Override
+		public double getPriority(long hits, long size, long accessTime) {
+			return accessTime;
+		}
+
+		@Override
+		public void onEvicted(double priority) {
+		}
+	}
+
+	/**
+	 * Least frequently used entries are evicted first, least recently used among equal ones
+	 */
+	class Lfu implements EvictionPolicy {
+		@Override
+		public double getPriority(long hits, long size, long accessTime) {
+			return hits;
+		}
+
+		@Override
+		public void onEvicted(double priority) {
+		}
+	}
+
+	/**
+	 * Greedy Dual Size Frequency: priority grows with hits and shrinks with size, so one pass
+	 * over many large files can't push out small frequently used ones. Inflation value raised on
+	 * every eviction ages entries that stopped being accessed.
+	 */
+	class Gdsf implements EvictionPolicy {
+		private double inflation = 0;
+
+		@Override
+		public synchronized double getPriority(long hits, long size, long accessTime) {
+			return inflation + (hits + 1) / (double) Math.max(size, 1);
+		}
+
+		@Override
+		public synchronized void onEvicted(double priority) {
+			if (priority > inflation)
+				inflation = priority;
+		}
+	}
+}
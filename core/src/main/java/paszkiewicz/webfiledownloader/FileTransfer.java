@@ -0,0 +1,393 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Copy loop moving bytes from remote stream into cached file.<br> Has no android dependencies so
+ * it can be driven and measured on a plain JVM.
+ */
+class FileTransfer {
+	final static int DEFAULT_BUFFER_SIZE = 4096;
+	/**
+	 * Max bytes moved by single channel transfer, keeps progress and cancellation responsive
+	 */
+	final static long CHANNEL_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private final int bufferSize;
+
+	private Executor writer;
+	private int chunkSize;
+	/**
+	 * Empty chunks of write-behind ring, kept between transfers. Reader blocks on it when all
+	 * chunks wait for the writer.
+	 */
+	private BlockingQueue<Chunk> freeChunks;
+
+	FileTransfer() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize size of the read buffer in bytes
+	 */
+	FileTransfer(int bufferSize) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("bufferSize must be positive");
+		this.bufferSize = bufferSize;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Write stream copies on a separate thread, so stalled storage doesn't stop reading from the
+	 * network until the ring of chunks fills up
+	 *
+	 * @param writer    runs the writer for the whole copy, must start it right away instead of
+	 *                  queueing behind other writers. Null writes on the reading thread.
+	 * @param chunkSize size of single chunk in bytes
+	 * @param ringSize  amount of chunks read ahead of the writer
+	 */
+	void setWriteBehind(Executor writer, int chunkSize, int ringSize) {
+		if (writer != null && (chunkSize <= 0 || ringSize <= 0))
+			throw new IllegalArgumentException("chunkSize and ringSize must be positive");
+		this.writer = writer;
+		this.chunkSize = chunkSize;
+		freeChunks = null;
+		if (writer != null) {
+			freeChunks = new ArrayBlockingQueue<>(ringSize);
+			for (int i = 0; i < ringSize; i++) {
+				freeChunks.add(new Chunk(chunkSize));
+			}
+		}
+	}
+
+	/**
+	 * Copy input into output until end of stream or until listener requests a stop
+	 *
+	 * @param input    stream to read
+	 * @param output   stream to append to
+	 * @param progress amount of bytes already present in output (restored partial download)
+	 * @param listener receives progress and decides when to stop, can be null
+	 * @return true if input was read to the end, false if transfer was stopped
+	 * @throws IOException if reading or writing fails
+	 */
+	boolean copy(InputStream input, OutputStream output, long progress, Listener listener)
+			throws IOException {
+		if (writer != null)
+			return copyWriteBehind(input, output, progress, listener);
+		byte data[] = new byte[bufferSize];
+		int count;
+		//loop read input stream
+		while ((count = input.read(data)) != -1) {
+			if (listener != null) {
+				if (listener.isStopped())
+					return false;
+				progress += count;
+				listener.onProgress(progress);
+			}
+			output.write(data, 0, count);
+		}
+		return true;
+	}
+
+	/**
+	 * Like {@link #copy(InputStream, OutputStream, long, Listener)}, but chunks are written by
+	 * the writer while next ones are read. Returns only after every read chunk was written, so
+	 * output holds exactly the bytes reported as progress.
+	 */
+	private boolean copyWriteBehind(InputStream input, OutputStream output, long progress,
+									Listener listener) throws IOException {
+		WriteBehind task = new WriteBehind(output, freeChunks);
+		writer.execute(task);
+		boolean isComplete = false;
+		Throwable primary = null;
+		try {
+			while (true) {
+				Chunk chunk = task.takeFree();
+				int count = input.read(chunk.data, 0, chunkSize);
+				if (count == -1) {
+					task.recycle(chunk);
+					isComplete = true;
+					break;
+				}
+				//fill the chunk with what already arrived, fewer and larger writes
+				boolean isEnded = false;
+				while (count < chunkSize && input.available() > 0) {
+					int more = input.read(chunk.data, count, chunkSize - count);
+					if (more == -1) {
+						isEnded = true;
+						break;
+					}
+					count += more;
+				}
+				if (listener != null) {
+					if (listener.isStopped()) {
+						task.recycle(chunk);
+						break;
+					}
+					progress += count;
+					listener.onProgress(progress);
+				}
+				chunk.length = count;
+				task.write(chunk);
+				if (isEnded) {
+					isComplete = true;
+					break;
+				}
+			}
+		} catch (Throwable e) {
+			primary = e;
+			throw e;
+		} finally {
+			finish(task, primary);
+		}
+		return isComplete;
+	}
+
+	/**
+	 * Wait for the writer. Its error is thrown only if reading succeeded, otherwise it's attached
+	 * to the reader's error.
+	 *
+	 * @param primary error that ended reading, null if reading succeeded
+	 */
+	private static void finish(WriteBehind task, Throwable primary) throws IOException {
+		try {
+			task.finish();
+		} catch (IOException e) {
+			if (primary == null)
+				throw e;
+			if (primary != e) {
+				try {
+					primary.addSuppressed(e);
+				} catch (NoSuchMethodError ignored) {
+					//missing below android API 19
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy region of a file channel into output channel, letting the kernel move the bytes
+	 * without passing them through java buffers
+	 *
+	 * @param input    seekable source channel, its position is not changed
+	 * @param position offset in input to start reading from
+	 * @param count    amount of bytes to copy, or -1 to copy until end of input
+	 * @param output   channel to write to at its current position
+	 * @param progress amount of bytes already present in output (restored partial download)
+	 * @param listener receives progress and decides when to stop, can be null
+	 * @return true if requested region was copied, false if transfer was stopped
+	 * @throws IOException if reading or writing fails
+	 */
+	boolean copy(FileChannel input, long position, long count, FileChannel output, long progress,
+				 Listener listener) throws IOException {
+		long end = count < 0 ? input.size() : position + count;
+		while (position < end) {
+			if (listener != null && listener.isStopped())
+				return false;
+			long moved = input.transferTo(position, Math.min(CHANNEL_CHUNK_SIZE, end - position),
+					output);
+			if (moved <= 0)
+				break; //source got shorter than expected
+			position += moved;
+			progress += moved;
+			if (listener != null)
+				listener.onProgress(progress);
+		}
+		return true;
+	}
+
+	/**
+	 * Continue copy of content after bytes already present in output. Content of regular file
+	 * written into regular file is copied channel to channel, anything else is streamed after
+	 * skipping the stored bytes, so both paths continue at the same byte.
+	 *
+	 * @param input    stream positioned at first byte of the content
+	 * @param start    position of first byte of the content in channel of file input, -1 if
+	 *                 input can't be read at positions
+	 * @param length   length of the content, -1 if it's unknown
+	 * @param output   stream to append to
+	 * @param progress amount of bytes already present in output (restored partial download)
+	 * @param listener receives progress and decides when to stop, can be null
+	 * @return true if content was copied to the end, false if transfer was stopped
+	 * @throws IOException if reading, skipping or writing fails
+	 */
+	boolean copyResumed(InputStream input, long start, long length, OutputStream output,
+						long progress, Listener listener) throws IOException {
+		if (start >= 0 && input instanceof FileInputStream && output instanceof FileOutputStream)
+			return copy(((FileInputStream) input).getChannel(), start + progress,
+					length < 0 ? -1 : length - progress,
+					((FileOutputStream) output).getChannel(), progress, listener);
+		skipFully(input, progress);
+		return copy(input, output, progress, listener);
+	}
+
+	/**
+	 * Skip exactly amount of bytes from stream
+	 *
+	 * @throws IOException if stream ends before skipping all bytes
+	 */
+	static void skipFully(InputStream input, long count) throws IOException {
+		while (count > 0) {
+			long skipped = input.skip(count);
+			if (skipped <= 0) {
+				//skip is allowed to give up, read a byte to tell that apart from end of stream
+				if (input.read() == -1)
+					throw new IOException("stream ended before skipped part");
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * Pooled buffer passed from reader to writer
+	 */
+	private static class Chunk {
+		final byte[] data;
+		int length;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Writer side of a single write-behind copy
+	 */
+	private static class WriteBehind implements Runnable {
+		/**
+		 * Queued after the last chunk
+		 */
+		private final static Chunk END = new Chunk(0);
+
+		private final OutputStream output;
+		private final BlockingQueue<Chunk> free;
+		private final BlockingQueue<Chunk> filled;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile IOException error;
+
+		WriteBehind(OutputStream output, BlockingQueue<Chunk> free) {
+			this.output = output;
+			this.free = free;
+			//every chunk is either free or filled, so adding never blocks
+			this.filled = new ArrayBlockingQueue<>(free.size() + 1);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Chunk chunk;
+				while ((chunk = filled.take()) != END) {
+					try {
+						if (error == null)
+							output.write(chunk.data, 0, chunk.length);
+					} catch (IOException e) {
+						//keep recycling so reader never waits for a chunk that won't come
+						error = e;
+					} catch (RuntimeException e) {
+						error = new IOException(e);
+					}
+					free.add(chunk);
+				}
+			} catch (InterruptedException e) {
+				error = new InterruptedIOException("writer interrupted");
+				//reader may be waiting for chunks that will never be written
+				recycleFilled();
+				Thread.currentThread().interrupt();
+			} finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Wait for a free chunk, blocking while the ring is full
+		 *
+		 * @throws IOException if writer failed
+		 */
+		Chunk takeFree() throws IOException {
+			checkError();
+			try {
+				return free.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted while waiting for writer");
+			}
+		}
+
+		void write(Chunk chunk) {
+			filled.add(chunk);
+		}
+
+		void recycle(Chunk chunk) {
+			free.add(chunk);
+		}
+
+		/**
+		 * Wait until all queued chunks are written
+		 *
+		 * @throws IOException if writer failed
+		 */
+		void finish() throws IOException {
+			filled.add(END);
+			boolean isInterrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					//output must not be closed while writer uses it
+					isInterrupted = true;
+				}
+			}
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			//chunks queued after writer failed stay in the ring for next transfer
+			recycleFilled();
+			checkError();
+		}
+
+		/**
+		 * Return chunks that were not written to free ones
+		 */
+		private void recycleFilled() {
+			Chunk chunk;
+			while ((chunk = filled.poll()) != null) {
+				if (chunk != END)
+					free.add(chunk);
+			}
+		}
+
+		private void checkError() throws IOException {
+			IOException e = error;
+			if (e != null)
+				throw e;
+		}
+	}
+
+	/**
+	 * Receives state of running transfer
+	 */
+	interface Listener {
+		/**
+		 * @return true if transfer should be abandoned
+		 */
+		boolean isStopped();
+
+		/**
+		 * @param current total amount of bytes transferred so far, including restored progress
+		 */
+		void onProgress(long current);
+	}
+}
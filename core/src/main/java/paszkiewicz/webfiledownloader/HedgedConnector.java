@@ -0,0 +1,232 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first of equivalent mirror urls that responds.<br> Starts on the first url and
+ * requests next mirror whenever no response arrived within hedge delay or previous request failed.
+ * First usable response wins and all other requests are aborted. Has no android dependencies.
+ */
+class HedgedConnector {
+	private final List<String> urls;
+	private final long hedgeDelay;
+	private final int timeout;
+	private final int readTimeout;
+	private final Executor executor;
+
+	private final LinkedBlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+	private final List<Attempt> started = new ArrayList<>();
+	private boolean isDone;
+	private boolean isAborted;
+	private int hedgeCount;
+
+	/**
+	 * @param urls        primary url followed by its mirrors
+	 * @param hedgeDelay  time (in milliseconds) to wait for response before next mirror is
+	 *                    requested
+	 * @param timeout     connection timeout of every request
+	 * @param readTimeout read timeout of every request
+	 * @param executor    runs requests when there is more than one url, must not queue them behind
+	 *                    downloads
+	 */
+	HedgedConnector(List<String> urls, long hedgeDelay, int timeout, int readTimeout,
+					Executor executor) {
+		this.urls = urls;
+		this.hedgeDelay = hedgeDelay;
+		this.timeout = timeout;
+		this.readTimeout = readTimeout;
+		this.executor = executor;
+	}
+
+	/**
+	 * Connect to fastest mirror, blocks until one responded or all failed
+	 *
+	 * @param offset          amount of bytes already stored, remainder is requested from every
+	 *                        mirror
+	 * @param storedValidator validator saved with stored bytes, mirror continues them only if its
+	 *                        validator matches
+	 * @return winning request, or failed one if no mirror returned usable response
+	 * @throws Exception error of the last failed request if none of them got a response
+	 */
+	Attempt connect(long offset, String storedValidator) throws Exception {
+		if (urls.size() == 1) {
+			//nothing to hedge, stay on calling thread
+			Attempt attempt = start(urls.get(0), offset, storedValidator);
+			if (attempt == null)
+				throw new InterruptedIOException("connection aborted");
+			attempt.run();
+			return keep(attempt);
+		}
+		int next = 0;
+		int running = 0;
+		Attempt failed = null;
+		while (true) {
+			if (running == 0 && next == urls.size())
+				break;
+			Attempt attempt;
+			try {
+				if (running == 0)
+					attempt = null;
+				else if (next < urls.size())
+					attempt = finished.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+				else
+					attempt = finished.take();
+			} catch (InterruptedException e) {
+				abort();
+				throw new InterruptedIOException("interrupted while connecting");
+			}
+			if (attempt == null) {
+				//no response in time or nothing running yet, request next mirror
+				Attempt hedge = start(urls.get(next), offset, storedValidator);
+				if (hedge == null)
+					throw new InterruptedIOException("connection aborted");
+				if (next > 0)
+					countHedge();
+				next++;
+				running++;
+				executor.execute(hedge);
+				continue;
+			}
+			running--;
+			if (attempt.isSuccessful()) {
+				finish(attempt);
+				return attempt;
+			}
+			failed = preferResponse(failed, attempt);
+			if (next < urls.size()) {
+				//don't wait out the delay after a failure
+				Attempt hedge = start(urls.get(next++), offset, storedValidator);
+				if (hedge == null)
+					throw new InterruptedIOException("connection aborted");
+				running++;
+				executor.execute(hedge);
+			}
+		}
+		return keep(failed);
+	}
+
+	/**
+	 * Abort all requests from any thread, including the winning one
+	 */
+	synchronized void abort() {
+		isAborted = true;
+		for (Attempt a : started) {
+			a.source.abort();
+		}
+	}
+
+	/**
+	 * @return amount of mirror requests started because earlier ones were slow
+	 */
+	synchronized int getHedgeCount() {
+		return hedgeCount;
+	}
+
+	private synchronized void countHedge() {
+		hedgeCount++;
+	}
+
+	/**
+	 * @return new request, or null if connector was aborted
+	 */
+	private synchronized Attempt start(String url, long offset, String storedValidator) {
+		if (isAborted)
+			return null;
+		Attempt attempt = new Attempt(url, offset, storedValidator);
+		started.add(attempt);
+		return attempt;
+	}
+
+	/**
+	 * Abort every request except the one returned to caller
+	 */
+	private synchronized void finish(Attempt kept) {
+		isDone = true;
+		for (Attempt a : started) {
+			if (a != kept)
+				a.source.abort();
+		}
+	}
+
+	/**
+	 * Return finished request to caller, or throw its error after releasing all requests
+	 */
+	private Attempt keep(Attempt attempt) throws Exception {
+		if (attempt.error != null) {
+			finish(null);
+			throw attempt.error;
+		}
+		finish(attempt);
+		return attempt;
+	}
+
+	private synchronized boolean isDone() {
+		return isDone;
+	}
+
+	/**
+	 * Keep failure that carries http response, so caller can report its status
+	 */
+	private static Attempt preferResponse(Attempt previous, Attempt current) {
+		if (previous != null && previous.error == null && current.error != null)
+			return previous;
+		return current;
+	}
+
+	/**
+	 * Single request to one mirror
+	 */
+	class Attempt implements Runnable {
+		final String url;
+		final HttpSource source;
+		private final long offset;
+		private final String storedValidator;
+
+		int responseCode = -1;
+		/**
+		 * True if mirror continues stored bytes
+		 */
+		boolean isResumed;
+		private Exception error;
+
+		private Attempt(String url, long offset, String storedValidator) {
+			this.url = url;
+			this.offset = offset;
+			this.storedValidator = storedValidator;
+			this.source = new HttpSource(url, timeout, readTimeout);
+		}
+
+		/**
+		 * @return true if mirror returned the file
+		 */
+		boolean isSuccessful() {
+			return error == null && (responseCode == HttpURLConnection.HTTP_OK
+					|| responseCode == HttpURLConnection.HTTP_PARTIAL);
+		}
+
+		@Override
+		public void run() {
+			try {
+				source.connect(offset);
+				responseCode = source.getResponseCode();
+				if (isSuccessful()) {
+					isResumed = source.resume(storedValidator);
+					//whole file is requested again if stored bytes can't be continued
+					responseCode = source.getResponseCode();
+				}
+			} catch (Exception e) {
+				error = e;
+			} finally {
+				if (isDone())
+					source.disconnect(); //lost while connecting
+				finished.add(this);
+			}
+		}
+	}
+}
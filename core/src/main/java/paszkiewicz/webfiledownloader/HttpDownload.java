@@ -0,0 +1,157 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Opens remote file for download, continuing stored bytes if server still has the same version of
+ * the file.<br> Slow urls are hedged with their mirrors, see {@link HedgedConnector}. Has no
+ * android dependencies, loader only maps the outcome to its error codes and progress.
+ */
+class HttpDownload {
+	private final HedgedConnector connector;
+	private volatile HttpSource source;
+	private int responseCode = -1;
+	private boolean isResumed;
+	private long length = -1;
+	private String validator;
+
+	/**
+	 * @param urls            primary url followed by its mirrors
+	 * @param hedgeDelay      time (in milliseconds) without response after which next mirror is
+	 *                        requested too
+	 * @param timeout         time (in milliseconds) to kill connection
+	 * @param readTimeout     time (in milliseconds) without data after which read fails, 0 for
+	 *                        infinite
+	 * @param connectExecutor runs mirror requests, must not queue them behind downloads
+	 */
+	HttpDownload(List<String> urls, long hedgeDelay, int timeout, int readTimeout,
+				 Executor connectExecutor) {
+		connector = new HedgedConnector(urls, hedgeDelay, timeout, readTimeout, connectExecutor);
+	}
+
+	/**
+	 * Connect to fastest mirror, blocks until one responded or all failed
+	 *
+	 * @param storedLength    amount of bytes already stored, 0 to download from scratch
+	 * @param storedTotal     length of the whole file saved with stored bytes, -1 if unknown
+	 * @param storedValidator validator saved with stored bytes
+	 * @return true if server sends the file, see {@link #getResponseCode()} otherwise
+	 * @throws Exception error of the last failed request if none of them got a response
+	 */
+	boolean open(long storedLength, long storedTotal, String storedValidator) throws Exception {
+		HedgedConnector.Attempt attempt = connector.connect(storedLength, storedValidator);
+		source = attempt.source;
+		responseCode = attempt.responseCode;
+		if (responseCode != HttpURLConnection.HTTP_OK
+				&& responseCode != HttpURLConnection.HTTP_PARTIAL)
+			return false;
+		isResumed = attempt.isResumed;
+		validator = source.getValidator();
+		if (isResumed) {
+			//total from Content-Range covers files whose length was not known when stored
+			long total = source.getTotalLength();
+			length = total >= 0 ? total : storedTotal;
+		} else {
+			length = source.getContentLength();
+		}
+		return true;
+	}
+
+	/**
+	 * Connect continuing stored bytes of cached file, see {@link #open(long, long, String)}. On
+	 * success file gets length of the remote file, and either {@link CacheableFile#partIsValid}
+	 * or validator of version sent from scratch.
+	 *
+	 * @param file cached file, partially loaded one is continued
+	 * @return true if server sends the file, see {@link #getResponseCode()} otherwise
+	 * @throws Exception error of the last failed request if none of them got a response
+	 */
+	boolean open(CacheableFile file) throws Exception {
+		long offset = file.isPartiallyLoaded() ? file.getStoredLength() : 0;
+		if (!open(offset, file.length, file.eTag))
+			return false;
+		file.length = length;
+		if (isResumed)
+			file.partIsValid = true;
+		else
+			file.eTag = validator; //we download from scratch
+		return true;
+	}
+
+	int getResponseCode() {
+		return responseCode;
+	}
+
+	String getResponseMessage() throws IOException {
+		return source.getResponseMessage();
+	}
+
+	/**
+	 * @return true if response continues stored bytes, false if file is sent from its start
+	 */
+	boolean isResumed() {
+		return isResumed;
+	}
+
+	/**
+	 * @return length of the whole file, -1 if server didn't report it
+	 */
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return ETag or Last-Modified value of the file sent by server
+	 */
+	String getValidator() {
+		return validator;
+	}
+
+	/**
+	 * @param limit        max amount of bytes to download, -1 for no limit
+	 * @param storedLength amount of bytes already stored
+	 * @return true if bytes left to download exceed the limit
+	 */
+	boolean isOverLimit(long limit, long storedLength) {
+		return limit >= 0 && length - storedLength > limit;
+	}
+
+	InputStream getInputStream() throws IOException {
+		return source.getInputStream();
+	}
+
+	/**
+	 * @return amount of mirror requests started because earlier ones were slow
+	 */
+	int getHedgeCount() {
+		return connector.getHedgeCount();
+	}
+
+	/**
+	 * @return amount of stored bytes thrown away because server could not continue them
+	 */
+	long getDiscardedBytes() {
+		HttpSource source = this.source;
+		return source != null ? source.getDiscardedBytes() : 0;
+	}
+
+	/**
+	 * Drop all connections from any thread, unblocking pending connect or read
+	 */
+	void abort() {
+		connector.abort();
+	}
+
+	/**
+	 * Release connection of finished download
+	 */
+	void disconnect() {
+		HttpSource source = this.source;
+		if (source != null)
+			source.disconnect();
+	}
+}
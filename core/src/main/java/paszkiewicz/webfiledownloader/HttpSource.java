@@ -0,0 +1,164 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Http connection to remote file, negotiating continuation of partial downloads.<br> Has no
+ * android dependencies so it can be driven against local server on a plain JVM.
+ */
+class HttpSource {
+	private final String url;
+	private final int timeout;
+	private final int readTimeout;
+
+	private volatile HttpURLConnection connection;
+	private volatile boolean isAborted;
+	private long offset;
+	private long discardedBytes;
+
+	/**
+	 * @param url         url of remote file
+	 * @param timeout     time (in milliseconds) to kill connection
+	 * @param readTimeout time (in milliseconds) without data after which read fails, 0 for
+	 *                    infinite
+	 */
+	HttpSource(String url, int timeout, int readTimeout) {
+		this.url = url;
+		this.timeout = timeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Connect to server
+	 *
+	 * @param offset amount of bytes already stored, if greater than 0 remainder is requested
+	 * @throws IOException if connection fails
+	 */
+	void connect(long offset) throws IOException {
+		connect(offset, -1);
+	}
+
+	/**
+	 * Connect to server requesting part of the file
+	 *
+	 * @param offset first requested byte
+	 * @param end    end of requested part (exclusive), -1 to request remainder of the file
+	 * @throws IOException if connection fails
+	 */
+	void connect(long offset, long end) throws IOException {
+		this.offset = offset;
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(readTimeout);
+		if (end >= 0)
+			connection.setRequestProperty(ResumeValidator.HEADER_RANGE,
+					ResumeValidator.rangeHeader(offset, end));
+		else if (offset > 0)
+			connection.setRequestProperty(ResumeValidator.HEADER_RANGE,
+					ResumeValidator.rangeHeader(offset));
+		this.connection = connection;
+		if (isAborted)
+			throw new InterruptedIOException("connection aborted");
+		connection.connect();
+	}
+
+	int getResponseCode() throws IOException {
+		return connection.getResponseCode();
+	}
+
+	String getResponseMessage() throws IOException {
+		return connection.getResponseMessage();
+	}
+
+	/**
+	 * Check if server continues stored partial file. If it sent partial content of a different
+	 * version full file is requested again.
+	 *
+	 * @param storedValidator validator saved with partial file
+	 * @return true if stored bytes are valid and input stream continues them
+	 * @throws IOException if reconnecting fails
+	 */
+	boolean resume(String storedValidator) throws IOException {
+		if (offset > 0 && getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+			//server accepted our partial load request, check if ETag is same
+			if (ResumeValidator.canResume(storedValidator, getValidator()))
+				return true;
+			//if ETag is invalid we have to request http again and get full file
+			connection.disconnect();
+			discardedBytes += offset;
+			connect(0);
+		} else if (offset > 0) {
+			//server ignored range request
+			discardedBytes += offset;
+			offset = 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @return length of the response body or -1 if unknown, read as long since
+	 * {@link HttpURLConnection#getContentLength()} overflows past 2 GB
+	 */
+	long getContentLength() {
+		return ResumeValidator.parseLength(
+				connection.getHeaderField(ResumeValidator.HEADER_CONTENT_LENGTH));
+	}
+
+	/**
+	 * @return length of the whole file: Content-Range total for partial content and
+	 * unsatisfiable range, body length otherwise. -1 if unknown.
+	 * @throws IOException if reading the response fails
+	 */
+	long getTotalLength() throws IOException {
+		int code = getResponseCode();
+		if (code != HttpURLConnection.HTTP_PARTIAL
+				&& code != ResumeValidator.HTTP_RANGE_NOT_SATISFIABLE)
+			return getContentLength();
+		long total = ResumeValidator.parseRangeTotal(
+				connection.getHeaderField(ResumeValidator.HEADER_CONTENT_RANGE));
+		if (total >= 0 || code != HttpURLConnection.HTTP_PARTIAL)
+			return total;
+		long remainder = getContentLength();
+		return remainder >= 0 ? offset + remainder : -1;
+	}
+
+	/**
+	 * Get ETAG header provided by server, if its missing use last-modified instead
+	 *
+	 * @return etag or last-modified value
+	 */
+	String getValidator() {
+		return ResumeValidator.pickValidator(
+				connection.getHeaderField(ResumeValidator.HEADER_ETAG),
+				connection.getHeaderField(ResumeValidator.HEADER_LAST_MODIFIED));
+	}
+
+	/**
+	 * @return amount of stored bytes thrown away because server could not continue them
+	 */
+	long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	InputStream getInputStream() throws IOException {
+		return connection.getInputStream();
+	}
+
+	void disconnect() {
+		HttpURLConnection connection = this.connection;
+		if (connection != null)
+			connection.disconnect();
+	}
+
+	/**
+	 * Drop connection from any thread, unblocking pending connect or read
+	 */
+	void abort() {
+		isAborted = true;
+		disconnect();
+	}
+}
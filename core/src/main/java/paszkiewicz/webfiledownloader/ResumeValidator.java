@@ -0,0 +1,89 @@
+package paszkiewicz.webfiledownloader;
+
+/**
+ * Range and ETag rules deciding if partial download can be continued.<br> Has no android
+ * dependencies.
+ */
+abstract class ResumeValidator {
+	final static String HEADER_RANGE = "Range";
+	final static String HEADER_ETAG = "ETag";
+	final static String HEADER_LAST_MODIFIED = "Last-Modified";
+	final static String HEADER_CONTENT_LENGTH = "Content-Length";
+	final static String HEADER_CONTENT_RANGE = "Content-Range";
+	/**
+	 * Requested range starts past the end of the file, missing from {@link
+	 * java.net.HttpURLConnection} constants
+	 */
+	final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/**
+	 * @param offset amount of bytes already stored
+	 * @return value of Range header requesting remainder of the file
+	 */
+	static String rangeHeader(long offset) {
+		return "bytes=" + offset + "-";
+	}
+
+	/**
+	 * @param start first requested byte
+	 * @param end   end of the range, exclusive
+	 * @return value of Range header requesting bytes between start and end
+	 */
+	static String rangeHeader(long start, long end) {
+		return "bytes=" + start + "-" + (end - 1);
+	}
+
+	/**
+	 * Parse length header without the 2 GB limit of {@link java.net.URLConnection#getContentLength()}
+	 *
+	 * @param contentLength Content-Length header, can be null
+	 * @return length in bytes or -1 if missing or malformed
+	 */
+	static long parseLength(String contentLength) {
+		if (contentLength == null)
+			return -1;
+		try {
+			long length = Long.parseLong(contentLength.trim());
+			return length >= 0 ? length : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse complete file length out of partial content response, eg. "bytes 100-199/1000"
+	 *
+	 * @param contentRange Content-Range header, can be null
+	 * @return length of the whole file or -1 if missing, unknown ("*") or malformed
+	 */
+	static long parseRangeTotal(String contentRange) {
+		if (contentRange == null)
+			return -1;
+		int slash = contentRange.lastIndexOf('/');
+		if (slash < 0)
+			return -1;
+		return parseLength(contentRange.substring(slash + 1));
+	}
+
+	/**
+	 * Pick value identifying remote file version, ETag is preferred over last-modified
+	 *
+	 * @param eTag         ETag header, can be null
+	 * @param lastModified Last-Modified header, can be null
+	 * @return validator or null if server provided neither
+	 */
+	static String pickValidator(String eTag, String lastModified) {
+		if (eTag == null || eTag.isEmpty())
+			return lastModified;
+		return eTag;
+	}
+
+	/**
+	 * @param stored   validator saved along the partial file
+	 * @param response validator sent by server with partial content
+	 * @return true if stored bytes belong to the same version of the file
+	 */
+	static boolean canResume(String stored, String response) {
+		return stored != null && stored.equals(response);
+	}
+}
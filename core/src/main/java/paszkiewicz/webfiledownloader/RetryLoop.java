@@ -0,0 +1,84 @@
+package paszkiewicz.webfiledownloader;
+
+/**
+ * Runs attempts of a transfer until one finishes, retrying failures allowed by {@link
+ * RetryPolicy} after its delay.<br> Has no android dependencies.
+ */
+abstract class RetryLoop {
+	/**
+	 * Interval (in milliseconds) of checking for stop while waiting for next attempt
+	 */
+	private final static long POLL_INTERVAL = 50;
+
+	private final RetryPolicy policy;
+
+	/**
+	 * @param policy policy deciding which failures are retried
+	 */
+	RetryLoop(RetryPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Run attempts on calling thread
+	 *
+	 * @return true if an attempt finished, false if attempt or waiting for next one was stopped
+	 * @throws Exception error of the last attempt if it can't be retried
+	 */
+	boolean run() throws Exception {
+		int failedAttempts = 0;
+		while (true) {
+			try {
+				return attempt(failedAttempts);
+			} catch (Exception e) {
+				failedAttempts++;
+				if (isStopped() || !policy.shouldRetry(e, failedAttempts))
+					throw e;
+				onRetry(failedAttempts);
+				if (!waitForRetry(policy.getDelay(failedAttempts)))
+					return false;
+			}
+		}
+	}
+
+	/**
+	 * Single attempt, continuing whatever previous attempts stored
+	 *
+	 * @param failedAttempts amount of previous attempts
+	 * @return true if transfer finished, false if it was stopped
+	 * @throws Exception anything thrown while opening or copying
+	 */
+	protected abstract boolean attempt(int failedAttempts) throws Exception;
+
+	/**
+	 * @return true if transfer is no longer needed
+	 */
+	protected abstract boolean isStopped();
+
+	/**
+	 * Called after failed attempt that will be retried, release its connection here
+	 *
+	 * @param failedAttempts amount of failed attempts so far
+	 */
+	protected void onRetry(int failedAttempts) {
+	}
+
+	/**
+	 * Sleep before next attempt, waking up early if transfer gets stopped
+	 *
+	 * @param delay time to wait in milliseconds
+	 * @return true if transfer should retry, false if it was stopped meanwhile
+	 */
+	private boolean waitForRetry(long delay) {
+		long end = System.currentTimeMillis() + delay;
+		long left;
+		while (!isStopped() && (left = end - System.currentTimeMillis()) > 0) {
+			try {
+				Thread.sleep(Math.min(left, POLL_INTERVAL));
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return !isStopped();
+	}
+}
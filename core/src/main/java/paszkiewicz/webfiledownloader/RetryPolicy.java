@@ -0,0 +1,92 @@
+package paszkiewicz.webfiledownloader;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Decides if failed transfer should be retried and how long to wait before it.<br> Delay grows
+ * exponentially from base delay up to max delay, actual wait is picked randomly below it (full
+ * jitter) so many clients don't reconnect at once.
+ */
+public class RetryPolicy {
+	/**
+	 * Never retry, first failure ends the download
+	 */
+	public final static RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+	/**
+	 * Up to 5 attempts when connection drops or times out, waiting at most 10 seconds
+	 */
+	public final static RetryPolicy DEFAULT = new RetryPolicy(5, 500, 10000,
+			SocketException.class, SocketTimeoutException.class);
+
+	private final static Random random = new Random();
+
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final List<Class<? extends Exception>> retryable;
+
+	/**
+	 * @param maxAttempts amount of attempts including the first one
+	 * @param baseDelay   delay (in milliseconds) limit before first retry
+	 * @param maxDelay    delay (in milliseconds) limit never exceeded
+	 * @param retryable   exception classes (and subclasses) that can be retried
+	 */
+	@SafeVarargs
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+					   Class<? extends Exception>... retryable) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		List<Class<? extends Exception>> list = new ArrayList<>(retryable.length);
+		for (Class<? extends Exception> c : retryable) {
+			list.add(c);
+		}
+		this.retryable = Collections.unmodifiableList(list);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public List<Class<? extends Exception>> getRetryable() {
+		return retryable;
+	}
+
+	/**
+	 * @param e       exception that ended the attempt
+	 * @param attempt amount of failed attempts so far, starting with 1
+	 * @return true if another attempt should be made
+	 */
+	boolean shouldRetry(Exception e, int attempt) {
+		if (attempt >= maxAttempts)
+			return false;
+		for (Class<? extends Exception> c : retryable) {
+			if (c.isInstance(e))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param attempt amount of failed attempts so far, starting with 1
+	 * @return time (in milliseconds) to wait before next attempt
+	 */
+	long getDelay(int attempt) {
+		long limit = baseDelay;
+		for (int i = 1; i < attempt && limit < maxDelay; i++)
+			limit *= 2;
+		limit = Math.min(limit, maxDelay);
+		if (limit <= 0)
+			return 0;
+		synchronized (random) {
+			return (long) (random.nextDouble() * limit);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Processing stage applied to file while it's downloaded.<br> Original bytes stream through the
+ * stage as they are written into cache, its output is cached as derived variant of the url. Cache
+ * hit of the variant skips both the download and the processing.
+ */
+public interface Transform {
+	/**
+	 * @return identifier of the stage and its parameters, part of the derived cache key. Must
+	 * change whenever output would change.
+	 */
+	String getKey();
+
+	/**
+	 * Wrap output of the stage
+	 *
+	 * @param output stream receiving transformed bytes
+	 * @return stream receiving original bytes, closing it must close the output
+	 * @throws IOException if stage can't be started
+	 */
+	OutputStream open(OutputStream output) throws IOException;
+
+	/**
+	 * Decompresses zlib (deflate) content
+	 */
+	class Inflate implements Transform {
+		@Override
+		public String getKey() {
+			return "inflate";
+		}
+
+		@Override
+		public OutputStream open(OutputStream output) {
+			return new InflaterOutputStream(output);
+		}
+	}
+}
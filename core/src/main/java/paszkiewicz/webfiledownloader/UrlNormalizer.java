@@ -0,0 +1,150 @@
+package paszkiewicz.webfiledownloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Maps urls to the form they're cached under, urls normalized to the same string share one cached
+ * file.<br> Applied to every url before it's looked up, so it must be fast and must not depend on
+ * anything but the url. Derived variants made by {@link Transform}s are normalized by their
+ * original url.
+ */
+public interface UrlNormalizer {
+	/**
+	 * @param url url passed to the download
+	 * @return url the file is cached under
+	 */
+	String normalize(String url);
+
+	/**
+	 * Every distinct url is cached separately
+	 */
+	class Identity implements UrlNormalizer {
+		@Override
+		public String normalize(String url) {
+			return url;
+		}
+	}
+
+	/**
+	 * Lowercases scheme and host, drops default port, fragment and empty query parameters, and sorts the remaining parameters by name. Repeated parameters keep their
+	 * order, since it often matters to the server. Parameters with stripped names are dropped as
+	 * well, eg. tracking parameters or expiring signatures of CDN urls. Relies on server ignoring
+	 * order of distinct parameters.
+	 */
+	class Default implements UrlNormalizer {
+		private final static Comparator<String> NAME_ORDER = new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return getName(a).compareTo(getName(b));
+			}
+		};
+
+		private final List<String> names = new ArrayList<>();
+		private final List<String> prefixes = new ArrayList<>();
+		private final boolean foldHttps;
+
+		/**
+		 * @param strippedParameters names of query parameters to drop, case sensitive. Name ending
+		 *                           with * drops every parameter starting with the rest of it, eg.
+		 *                           "utm_*" or "X-Amz-*".
+		 */
+		public Default(String... strippedParameters) {
+			this(false, strippedParameters);
+		}
+
+		/**
+		 * @param foldHttps          if true https urls are cached under their http form, only for
+		 *                           servers serving the same content over both schemes
+		 * @param strippedParameters see {@link #Default(String...)}
+		 */
+		public Default(boolean foldHttps, String... strippedParameters) {
+			this.foldHttps = foldHttps;
+			for (String name : strippedParameters) {
+				if (name.endsWith("*"))
+					prefixes.add(name.substring(0, name.length() - 1));
+				else
+					names.add(name);
+			}
+		}
+
+		@Override
+		public String normalize(String url) {
+			int fragment = url.indexOf('#');
+			if (fragment >= 0)
+				url = url.substring(0, fragment);
+			int queryStart = url.indexOf('?');
+			String base = queryStart < 0 ? url : url.substring(0, queryStart);
+			StringBuilder normalized = new StringBuilder(url.length());
+			normalized.append(normalizeBase(base));
+			if (queryStart < 0)
+				return normalized.toString();
+
+			List<String> parameters = new ArrayList<>(
+					Arrays.asList(url.substring(queryStart + 1).split("&")));
+			for (int i = parameters.size() - 1; i >= 0; i--) {
+				String parameter = parameters.get(i);
+				if (parameter.isEmpty() || isStripped(getName(parameter)))
+					parameters.remove(i);
+			}
+			//stable, values of repeated names stay in place
+			Collections.sort(parameters, NAME_ORDER);
+			for (int i = 0; i < parameters.size(); i++) {
+				normalized.append(i == 0 ? '?' : '&').append(parameters.get(i));
+			}
+			return normalized.toString();
+		}
+
+		/**
+		 * @return true if parameter with this name is dropped
+		 */
+		protected boolean isStripped(String name) {
+			if (names.contains(name))
+				return true;
+			for (String prefix : prefixes) {
+				if (name.startsWith(prefix))
+					return true;
+			}
+			return false;
+		}
+
+		private static String getName(String parameter) {
+			int equals = parameter.indexOf('=');
+			return equals < 0 ? parameter : parameter.substring(0, equals);
+		}
+
+		/**
+		 * @param base url without query and fragment
+		 * @return base with normalized scheme and authority, or unchanged if it has no scheme
+		 */
+		private String normalizeBase(String base) {
+			int schemeEnd = base.indexOf("://");
+			if (schemeEnd <= 0)
+				return base;
+			String scheme = base.substring(0, schemeEnd).toLowerCase(Locale.US);
+			int authorityStart = schemeEnd + 3;
+			int pathStart = base.indexOf('/', authorityStart);
+			if (pathStart < 0)
+				pathStart = base.length();
+			String authority = base.substring(authorityStart, pathStart);
+			//user info is case sensitive, host is not
+			int hostStart = authority.lastIndexOf('@') + 1;
+			authority = authority.substring(0, hostStart)
+					+ authority.substring(hostStart).toLowerCase(Locale.US);
+			if (scheme.equals("https")) {
+				if (authority.endsWith(":443"))
+					authority = authority.substring(0, authority.length() - 4);
+				if (foldHttps)
+					scheme = "http";
+			} else if (scheme.equals("http") && authority.endsWith(":80")) {
+				authority = authority.substring(0, authority.length() - 3);
+			}
+			String path = base.substring(pathStart);
+			return scheme + "://" + authority + (path.isEmpty() ? "/" : path);
+		}
+	}
+}
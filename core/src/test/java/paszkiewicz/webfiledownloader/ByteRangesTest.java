@@ -0,0 +1,97 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangesTest {
+	@Test
+	public void adjacentRangesMerge() {
+		ByteRanges ranges = new ByteRanges();
+		ranges.add(0, 10);
+		ranges.add(10, 20);
+		ranges.add(30, 40);
+		ranges.add(20, 30);
+
+		assertEquals("0-40", ranges.toString());
+		assertEquals(40, ranges.getCoveredBytes());
+		assertTrue(ranges.contains(0, 40));
+	}
+
+	@Test
+	public void overlappingRangesMerge() {
+		ByteRanges ranges = new ByteRanges();
+		ranges.add(10, 20);
+		ranges.add(30, 40);
+		ranges.add(15, 35);
+
+		assertEquals("10-40", ranges.toString());
+		assertEquals(30, ranges.getCoveredBytes());
+
+		//spans and swallows all stored ranges
+		ranges.add(50, 60);
+		ranges.add(5, 70);
+		assertEquals("5-70", ranges.toString());
+		assertEquals(65, ranges.getCoveredBytes());
+	}
+
+	@Test
+	public void containedRangeChangesNothing() {
+		ByteRanges ranges = new ByteRanges();
+		ranges.add(0, 100);
+		ranges.add(10, 20);
+		ranges.add(0, 100);
+
+		assertEquals("0-100", ranges.toString());
+		assertEquals(100, ranges.getCoveredBytes());
+		assertTrue(ranges.contains(10, 20));
+		assertFalse(ranges.contains(50, 101));
+	}
+
+	@Test
+	public void emptyRangesAreIgnored() {
+		ByteRanges ranges = new ByteRanges();
+		ranges.add(10, 10);
+		ranges.add(20, 5);
+
+		assertTrue(ranges.isEmpty());
+		assertEquals(0, ranges.getCoveredBytes());
+		assertEquals("", ranges.toString());
+		//empty range is always stored
+		assertTrue(ranges.contains(7, 7));
+	}
+
+	@Test
+	public void gapsSkipStoredRanges() {
+		ByteRanges ranges = new ByteRanges();
+		ranges.add(10, 20);
+		ranges.add(30, 40);
+		List<long[]> gaps = ranges.getGaps(15, 50);
+
+		assertEquals(2, gaps.size());
+		assertArrayEquals(new long[]{20, 30}, gaps.get(0));
+		assertArrayEquals(new long[]{40, 50}, gaps.get(1));
+		assertTrue(ranges.getGaps(10, 20).isEmpty());
+	}
+
+	@Test
+	public void parseRestoresRangesAndCoveredBytes() {
+		ByteRanges ranges = ByteRanges.parse("0-10,20-25");
+		assertEquals("0-10,20-25", ranges.toString());
+		assertEquals(15, ranges.getCoveredBytes());
+
+		ByteRanges copy = new ByteRanges(ranges);
+		copy.add(10, 20);
+		assertEquals(25, copy.getCoveredBytes());
+		assertEquals(15, ranges.getCoveredBytes());
+
+		//corrupted value is dropped as a whole
+		assertTrue(ByteRanges.parse("0-10,x").isEmpty());
+		assertTrue(ByteRanges.parse(null).isEmpty());
+	}
+}
@@ -0,0 +1,65 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheIndexTest {
+	@Test
+	public void lfuKeepsAdmittedEntry() {
+		CacheIndex index = new CacheIndex(new EvictionPolicy.Lfu());
+		for (int i = 0; i < 3; i++) {
+			index.put(createEntry("old" + i, i));
+			index.touch("old" + i, i);
+		}
+		//new entry has no hits yet, so it has the lowest priority of all
+		index.put(createEntry("new", 10));
+		List<CacheIndex.Entry> evicted = index.evict(3, "new");
+
+		assertEquals(1, evicted.size());
+		assertEquals("old0", evicted.get(0).key);
+		assertNotNull(index.get("new"));
+	}
+
+	@Test
+	public void evictStopsAtKeptEntry() {
+		CacheIndex index = new CacheIndex();
+		index.put(createEntry("a", 1));
+		index.put(createEntry("b", 2));
+		List<CacheIndex.Entry> evicted = index.evict(0, "b");
+
+		assertEquals(1, evicted.size());
+		assertNull(index.get("a"));
+		assertNotNull(index.get("b"));
+		assertTrue(index.evict(0, "b").isEmpty());
+	}
+
+	@Test
+	public void evictCompleteSkipsPartialEntries() {
+		CacheIndex index = new CacheIndex();
+		CacheIndex.Entry partial = createEntry("partial", 1);
+		partial.complete = false;
+		index.put(partial);
+		index.put(createEntry("a", 2));
+		index.put(createEntry("b", 3));
+		assertEquals(300, index.getTotalBytes());
+		assertEquals(200, index.getCompleteBytes());
+
+		assertEquals("a", index.evictEldestComplete("b").key);
+		assertNull(index.evictEldestComplete("b"));
+		assertNotNull(index.get("partial"));
+		assertEquals(100, index.getCompleteBytes());
+	}
+
+	private static CacheIndex.Entry createEntry(String key, long date) {
+		CacheIndex.Entry e = new CacheIndex.Entry(key, key, date);
+		e.length = 100;
+		e.complete = true;
+		return e;
+	}
+}
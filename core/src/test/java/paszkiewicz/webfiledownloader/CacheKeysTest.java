@@ -0,0 +1,41 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CacheKeysTest {
+	private final UrlNormalizer normalizer = new UrlNormalizer.Default("utm_*");
+
+	@Test
+	public void sortsParametersByNameOnly() {
+		assertEquals("https://example.com/a?b=1&c=3&c=1&c=2",
+				normalizer.normalize("https://Example.com:443/a?c=3&utm_source=x&b=1&c=1&c=2"));
+	}
+
+	@Test
+	public void repeatedParametersKeepTheirOrder() {
+		assertNotEquals(normalizer.normalize("http://example.com/?a=2&a=1"),
+				normalizer.normalize("http://example.com/?a=1&a=2"));
+	}
+
+	@Test
+	public void originalUrlMayContainSpaces() {
+		String url = "http://example.com/my file.zip";
+		String key = CacheKeys.getDerivedKey(url,
+				Collections.<Transform>singletonList(new Transform.Inflate()));
+		assertEquals(url, CacheKeys.getOriginalUrl(key));
+		assertEquals(url + "\ninflate", CacheKeys.normalize(key, normalizer));
+	}
+
+	@Test
+	public void urlWithoutTransformsIsItsOwnKey() {
+		String url = "http://example.com/a b";
+		assertEquals(url, CacheKeys.getDerivedKey(url, Arrays.<Transform>asList()));
+		assertEquals(url, CacheKeys.getOriginalUrl(url));
+	}
+}
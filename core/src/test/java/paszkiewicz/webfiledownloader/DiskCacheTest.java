@@ -0,0 +1,196 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+	private final static String URL = "https://example.com/a.jpg";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DiskCache.Shared shared;
+	private MemoryDatabase db;
+	private DiskCache cache;
+	/**
+	 * Keys whose memory copy was dropped
+	 */
+	private final List<String> removed = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		shared = new DiskCache.Shared();
+		db = new MemoryDatabase();
+		cache = new DiskCache(shared, db, folder.newFolder("cache"), 100, TestDownload.DIRECT) {
+			@Override
+			protected void onRemoved(String key) {
+				removed.add(key);
+			}
+		};
+	}
+
+	@Test
+	public void routingLookupCountsNoHit() throws IOException {
+		CacheableFile file = download(URL, 16);
+		long hits = cache.getStats().getHits();
+		long rowHits = db.get(file.key).hits;
+
+		assertTrue(shared.isLoaded(URL));
+		assertFalse(shared.isLoaded("https://example.com/b.jpg"));
+		assertEquals(hits, cache.getStats().getHits());
+		assertEquals(rowHits, db.get(file.key).hits);
+
+		//only the load itself is a hit
+		assertNotNull(shared.peekLoadedFile(URL));
+		assertEquals(hits + 1, cache.getStats().getHits());
+	}
+
+	@Test
+	public void peekedHitsAreSavedWithNextAccess() throws IOException, InterruptedException {
+		CacheableFile file = download(URL, 16);
+		long rowHits = db.get(file.key).hits;
+		long rowDate = db.get(file.key).date;
+		Thread.sleep(5);
+
+		assertNotNull(shared.peekLoadedFile(URL));
+		assertNotNull(shared.peekLoadedFile(URL));
+		//main thread doesn't write the row
+		assertEquals(rowHits, db.get(file.key).hits);
+
+		cache.getStats();
+		assertEquals(rowHits + 2, db.get(file.key).hits);
+		assertTrue(db.get(file.key).date > rowDate);
+
+		//written once
+		cache.getStats();
+		assertEquals(rowHits + 2, db.get(file.key).hits);
+	}
+
+	@Test
+	public void replacedContentLeavesMemory() throws IOException {
+		CacheableFile file = download(URL, 16);
+		removed.clear();
+
+		//source changed, old copy is no longer served
+		file = cache.getCachedUrlFile(URL);
+		cache.markIncomplete(file);
+		assertEquals(Collections.singletonList(file.key), removed);
+
+		removed.clear();
+		write(file.partFile, 32);
+		file.length = 32;
+		cache.commit(file);
+		assertEquals(Collections.singletonList(file.key), removed);
+
+		//cache file is emptied when only destination keeps the content
+		removed.clear();
+		file = cache.getCachedUrlFile(URL);
+		file.destination = Destination.toFile(folder.newFile("destination"));
+		file.length = 0;
+		cache.commitExternal(file);
+		assertEquals(Collections.singletonList(file.key), removed);
+	}
+
+	@Test
+	public void removedEntryOfRunningDownloadIsInsertedAgain() throws IOException {
+		CacheableFile file = cache.getCachedUrlFile(URL);
+		cache.beginWrite(file);
+		write(file.partFile, 16);
+
+		assertEquals(1, cache.invalidateCachedEntries(new CacheFilter() {
+			@Override
+			public boolean accept(String url) {
+				return true;
+			}
+		}));
+		assertNull(db.get(file.key));
+		assertTrue(file.partFile.exists());
+
+		file.length = 16;
+		cache.commit(file);
+		cache.endWrite(file);
+		assertTrue(file.file.exists());
+		assertTrue(shared.isLoaded(URL));
+		assertTrue(db.get(file.key).complete);
+		assertEquals(file.file.getName(), db.get(file.key).filename);
+	}
+
+	@Test
+	public void renamedEntryOfRunningDownloadIsRecordedAgain() throws IOException {
+		CacheableFile file = cache.getCachedUrlFile(URL);
+		cache.beginWrite(file);
+		write(file.partFile, 16);
+
+		cache.invalidateCachedEntry(URL);
+		assertNotEquals(file.file.getName(), db.get(file.key).filename);
+		assertTrue(file.partFile.exists());
+
+		file.length = 16;
+		cache.commit(file);
+		cache.endWrite(file);
+		assertEquals(file.file.getName(), db.get(file.key).filename);
+		assertTrue(db.get(file.key).complete);
+		assertEquals(file.file, shared.peekLoadedFile(URL));
+	}
+
+	@Test
+	public void lastWriterDeletesInvalidatedFiles() throws IOException {
+		CacheableFile first = cache.getCachedUrlFile(URL);
+		CacheableFile second = cache.getCachedUrlFile(URL);
+		cache.beginWrite(first);
+		cache.beginWrite(second);
+		write(first.partFile, 16);
+		cache.invalidateCachedEntry(URL);
+
+		//second download still writes the shared part file
+		cache.discard(first);
+		cache.endWrite(first);
+		assertTrue(second.partFile.exists());
+
+		cache.discard(second);
+		cache.endWrite(second);
+		assertFalse(second.partFile.exists());
+
+		//files of finished downloads are deleted by invalidation itself
+		CacheableFile file = download(URL, 16);
+		cache.invalidateCachedEntry(URL);
+		assertFalse(file.file.exists());
+	}
+
+	/**
+	 * Look up url, write its part file and commit it
+	 */
+	private CacheableFile download(String url, int length) throws IOException {
+		CacheableFile file = cache.getCachedUrlFile(url);
+		write(file.partFile, length);
+		file.length = length;
+		cache.commit(file);
+		return file;
+	}
+
+	private static void write(File file, int length) throws IOException {
+		OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(new byte[length]);
+		} finally {
+			output.close();
+		}
+	}
+}
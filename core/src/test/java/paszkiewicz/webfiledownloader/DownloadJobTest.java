@@ -0,0 +1,188 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link DownloadJob} continuing stored bytes of local content into cache and destinations
+ */
+public class DownloadJobTest {
+	private final static String URL = "content://test/file.bin";
+	private final static String VALIDATOR = "v1";
+	private final static int LENGTH = 256 * 1024;
+	private final static int STORED = 100 * 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File source;
+	private byte[] content;
+	private DiskCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		content = new byte[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			content[i] = TestServer.byteAt(i, 0);
+		}
+		source = folder.newFile("source");
+		write(source, content, LENGTH);
+		cache = TestDownload.createCache(folder.newFolder("cache"));
+	}
+
+	@Test
+	public void resumesSeekableSourceIntoCache() throws Exception {
+		CacheableFile stored = store();
+		CacheableFile result = run(null);
+		assertArrayEquals(content, read(result.file));
+		assertEquals(stored.file, result.file);
+	}
+
+	@Test
+	public void resumesSeekableSourceIntoFileDestination() throws Exception {
+		File file = folder.newFile("destination");
+		write(file, content, STORED);
+		store();
+		CacheableFile result = run(Destination.toFile(file));
+		//destination and its cache copy are written through one stream
+		assertArrayEquals(content, read(file));
+		assertArrayEquals(content, read(result.file));
+	}
+
+	@Test
+	public void resumesSeekableSourceIntoBypassingDestination() throws Exception {
+		File file = folder.newFile("destination");
+		write(file, content, STORED);
+		store();
+		Destination destination = Destination.toFile(file);
+		destination.setBypassCache(true);
+		run(destination);
+		assertArrayEquals(content, read(file));
+	}
+
+	@Test
+	public void resumesSeekableSourceIntoChannelDestination() throws Exception {
+		File file = folder.newFile("destination");
+		write(file, content, STORED);
+		store();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			Destination destination = Destination.toChannel(channel);
+			destination.setBypassCache(true);
+			run(destination);
+		} finally {
+			raf.close();
+		}
+		assertArrayEquals(content, read(file));
+	}
+
+	/**
+	 * Record first {@link #STORED} bytes as left by interrupted copy of the same version
+	 */
+	private CacheableFile store() throws IOException {
+		CacheableFile file = cache.getCachedUrlFile(URL);
+		write(file.partFile, content, STORED);
+		file.length = LENGTH;
+		file.eTag = VALIDATOR;
+		cache.savePartialProgress(file);
+		return file;
+	}
+
+	private CacheableFile run(Destination destination) throws Exception {
+		DownloadJob job = new DownloadJob(URL, new FileSource(), new FileTransfer(),
+				new DownloadMetrics(URL), new DownloadJob.Listener() {
+			@Override
+			public boolean isStopped() {
+				return false;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+
+			@Override
+			public void onProgress(long current, long length) {
+			}
+
+			@Override
+			public void onLoaded(CacheableFile file) {
+			}
+
+			@Override
+			public boolean preallocate(FileOutputStream output, long length) {
+				return false;
+			}
+		});
+		job.setRetryPolicy(RetryPolicy.NONE);
+		job.setDestination(destination);
+		CacheableFile result = job.run(cache);
+		assertNotNull(result);
+		return result;
+	}
+
+	private static void write(File file, byte[] bytes, int count) throws IOException {
+		OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(bytes, 0, count);
+		} finally {
+			output.close();
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream input = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < bytes.length) {
+				int count = input.read(bytes, read, bytes.length - read);
+				if (count < 0)
+					return Arrays.copyOf(bytes, read);
+				read += count;
+			}
+		} finally {
+			input.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Regular file read the way {@code ContentLoaderTask} reads seekable descriptors
+	 */
+	private class FileSource extends ContentSource {
+		@Override
+		InputStream open(CacheableFile file) throws Exception {
+			if (file.isPartiallyLoaded() && VALIDATOR.equals(file.eTag)) {
+				file.partIsValid = true;
+			} else {
+				file.eTag = VALIDATOR;
+				file.length = LENGTH;
+			}
+			return new FileInputStream(source);
+		}
+
+		@Override
+		boolean copy(FileTransfer transfer, InputStream input, OutputStream output,
+					 long progress, FileTransfer.Listener listener) throws IOException {
+			return transfer.copyResumed(input, 0, LENGTH, output, progress, listener);
+		}
+	}
+}
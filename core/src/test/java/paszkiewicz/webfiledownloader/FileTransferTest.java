@@ -0,0 +1,139 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileTransferTest {
+	@Test(timeout = 5000)
+	public void readerErrorWinsOverWriterError() throws Exception {
+		final CountDownLatch readFailed = new CountDownLatch(1);
+		InputStream input = new InputStream() {
+			private int reads;
+
+			@Override
+			public int read() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (reads++ == 0)
+					return len;
+				readFailed.countDown();
+				throw new IOException("network");
+			}
+		};
+		OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					readFailed.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				throw new IOException("disk");
+			}
+		};
+		FileTransfer transfer = new FileTransfer();
+		transfer.setWriteBehind(new ThreadExecutor(), 16, 2);
+		try {
+			transfer.copy(input, output, 0, null);
+			fail();
+		} catch (IOException e) {
+			assertEquals("network", e.getMessage());
+			assertEquals(1, e.getSuppressed().length);
+			assertEquals("disk", e.getSuppressed()[0].getMessage());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void interruptedWriterReturnsChunks() throws Exception {
+		final CountDownLatch secondRead = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		final InputStream input = new InputStream() {
+			private int reads;
+
+			@Override
+			public int read() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (reads++ == 0)
+					return len;
+				//writer waits for next chunk meanwhile
+				secondRead.countDown();
+				try {
+					interrupted.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return len;
+			}
+		};
+		ThreadExecutor writer = new ThreadExecutor();
+		final FileTransfer transfer = new FileTransfer();
+		//single chunk, losing it would block every later transfer
+		transfer.setWriteBehind(writer, 16, 1);
+		final IOException[] error = new IOException[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					transfer.copy(input, new ByteArrayOutputStream(), 0, null);
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			}
+		});
+		reader.start();
+		assertTrue(secondRead.await(1, TimeUnit.SECONDS));
+		//give the writer time to write the first chunk and wait for the next one
+		Thread.sleep(100);
+		writer.thread.interrupt();
+		interrupted.countDown();
+		reader.join();
+		assertTrue(error[0] instanceof InterruptedIOException);
+
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(transfer.copy(new ByteArrayInputStream(data), output, 0, null));
+		assertArrayEquals(data, output.toByteArray());
+	}
+
+	/**
+	 * Runs every writer on a new thread, keeping the last one
+	 */
+	private static class ThreadExecutor implements Executor {
+		volatile Thread thread;
+
+		@Override
+		public void execute(Runnable command) {
+			thread = new Thread(command);
+			thread.start();
+		}
+	}
+}
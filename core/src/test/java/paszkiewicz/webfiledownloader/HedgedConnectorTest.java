@@ -0,0 +1,144 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mirrors of one file served by {@link TestServer}, slow ones delaying their response headers
+ */
+public class HedgedConnectorTest {
+	private final static int LENGTH = 1024 * 1024;
+	private final static long HEDGE_DELAY = 100;
+
+	private TestServer server;
+	private ExecutorService executor;
+	private TestServer.Resource primary;
+	private TestServer.Resource mirror;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TestServer();
+		executor = Executors.newCachedThreadPool();
+		primary = server.add("/primary", LENGTH);
+		mirror = server.add("/mirror", LENGTH);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		executor.shutdownNow();
+		server.close();
+	}
+
+	@Test(timeout = 10000)
+	public void fastPrimaryIsNotHedged() throws Exception {
+		HedgedConnector connector = create("/primary", "/mirror");
+		HedgedConnector.Attempt attempt = connector.connect(0, null);
+		try {
+			assertEquals(server.getUrl("/primary"), attempt.url);
+			assertEquals(0, connector.getHedgeCount());
+			assertEquals(0, mirror.getRequests());
+		} finally {
+			attempt.source.disconnect();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void hedgeFiresAfterDelay() throws Exception {
+		primary.setResponseDelay(2000, 1);
+		HedgedConnector connector = create("/primary", "/mirror");
+		long start = System.nanoTime();
+		HedgedConnector.Attempt attempt = connector.connect(0, null);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		try {
+			assertEquals(server.getUrl("/mirror"), attempt.url);
+			assertTrue(attempt.isSuccessful());
+			assertEquals(1, connector.getHedgeCount());
+			assertTrue("hedged after " + elapsed + " ms", elapsed >= HEDGE_DELAY);
+			assertTrue("hedged after " + elapsed + " ms", elapsed < 2000);
+		} finally {
+			attempt.source.disconnect();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void firstSuccessWinsAndLosersAreDisconnected() throws Exception {
+		primary.setResponseDelay(300, 1);
+		TestServer.Resource third = server.add("/third", LENGTH);
+		third.setResponseDelay(300, 1);
+		HedgedConnector connector = create("/primary", "/third", "/mirror");
+		HedgedConnector.Attempt attempt = connector.connect(0, null);
+		try {
+			assertEquals(server.getUrl("/mirror"), attempt.url);
+			assertEquals(2, connector.getHedgeCount());
+			//both slow mirrors answer into closed connections
+			while (server.getBrokenResponses() < 2) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, server.getBrokenResponses());
+			assertLength(attempt);
+		} finally {
+			attempt.source.disconnect();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void allMirrorsFail() throws Exception {
+		HedgedConnector connector = create("/missing", "/gone");
+		HedgedConnector.Attempt attempt = connector.connect(0, null);
+		attempt.source.disconnect();
+		assertFalse(attempt.isSuccessful());
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND, attempt.responseCode);
+	}
+
+	@Test(timeout = 10000)
+	public void mirrorSucceedsAfterStall() throws Exception {
+		primary.setResponseDelay(500, 1);
+		HedgedConnector connector = create("/primary", "/missing");
+		HedgedConnector.Attempt attempt = connector.connect(0, null);
+		try {
+			//hedge failed, stalled primary still delivers
+			assertEquals(server.getUrl("/primary"), attempt.url);
+			assertEquals(1, connector.getHedgeCount());
+			assertLength(attempt);
+		} finally {
+			attempt.source.disconnect();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failedRestartFailsAttempt() throws Exception {
+		//stored bytes belong to another version, whole file is requested again and fails
+		primary.setFullStatus("503 Service Unavailable");
+		HedgedConnector connector = create("/primary");
+		HedgedConnector.Attempt attempt = connector.connect(1024, "\"v9\"");
+		attempt.source.disconnect();
+		assertFalse(attempt.isResumed);
+		assertFalse(attempt.isSuccessful());
+		assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, attempt.responseCode);
+		assertEquals(2, primary.getRequests());
+	}
+
+	private HedgedConnector create(String... paths) {
+		String[] urls = new String[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			urls[i] = server.getUrl(paths[i]);
+		}
+		return new HedgedConnector(Arrays.asList(urls), HEDGE_DELAY, 5000, 5000, executor);
+	}
+
+	private static void assertLength(HedgedConnector.Attempt attempt) {
+		assertEquals(HttpURLConnection.HTTP_OK, attempt.responseCode);
+		assertEquals(LENGTH, attempt.source.getContentLength());
+	}
+}
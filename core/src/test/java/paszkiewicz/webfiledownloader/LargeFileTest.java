@@ -0,0 +1,189 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files past 2 GB, where lengths, limits and offsets no longer fit in int
+ */
+public class LargeFileTest {
+	private final static long LENGTH = 2200L * 1000 * 1000;
+	private final static long GB = 1024L * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TestServer server;
+	private TestServer.Resource resource;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TestServer();
+		resource = server.add("/large", LENGTH);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void streamsWholeFileWithLongProgress() throws Exception {
+		HttpDownload download = open(0);
+		assertEquals(LENGTH, download.getLength());
+		assertFalse(download.isResumed());
+
+		final long[] progress = {-1};
+		CountingSink sink = new CountingSink();
+		InputStream input = download.getInputStream();
+		try {
+			boolean isComplete = new FileTransfer(64 * 1024).copy(input, sink, 0,
+					new FileTransfer.Listener() {
+						@Override
+						public boolean isStopped() {
+							return false;
+						}
+
+						@Override
+						public void onProgress(long current) {
+							assertTrue(current > progress[0]);
+							progress[0] = current;
+						}
+					});
+			assertTrue(isComplete);
+		} finally {
+			input.close();
+			download.disconnect();
+		}
+		assertEquals(LENGTH, progress[0]);
+		assertEquals(LENGTH, sink.count);
+	}
+
+	@Test
+	public void limitsCompareLongLengths() throws Exception {
+		HttpDownload download = open(0);
+		download.disconnect();
+		assertTrue(download.isOverLimit(GB, 0));
+		assertFalse(download.isOverLimit(3 * GB, 0));
+		//only bytes left to download count against the limit
+		assertFalse(download.isOverLimit(GB, LENGTH - GB));
+		assertTrue(download.isOverLimit(GB, LENGTH - GB - 1));
+		assertFalse(download.isOverLimit(-1, 0));
+	}
+
+	@Test
+	public void resumesPastIntegerMaxValue() throws Exception {
+		long stored = Integer.MAX_VALUE + 8L * 1024 * 1024;
+		DiskCache cache = TestDownload.createCache(folder.getRoot());
+		store(cache, stored);
+
+		TestDownload download = new TestDownload(server.getUrl("/large"), cache,
+				RetryPolicy.NONE);
+		download.run();
+
+		assertEquals(1, download.getAttempts());
+		assertEquals(LENGTH, download.getLength());
+		assertEquals(LENGTH - stored, download.getReceivedBytes());
+		assertEquals(0, download.getDiscardedBytes());
+		assertEquals(LENGTH, download.getFile().length());
+		assertTail(download.getFile(), stored);
+	}
+
+	@Test
+	public void resumesPastIntegerMaxValueAfterDrop() throws Exception {
+		long dropAt = Integer.MAX_VALUE + 16L * 1024 * 1024;
+		long stored = Integer.MAX_VALUE - 16L * 1024 * 1024;
+		DiskCache cache = TestDownload.createCache(folder.getRoot());
+		store(cache, stored);
+		resource.setDrop(dropAt - stored, 1);
+
+		TestDownload download = new TestDownload(server.getUrl("/large"), cache,
+				new RetryPolicy(2, 0, 0, IOException.class));
+		download.run();
+
+		//second attempt continued from an offset past 2 GB
+		assertEquals(2, download.getAttempts());
+		assertEquals(LENGTH - stored, download.getReceivedBytes());
+		assertEquals(LENGTH, download.getFile().length());
+		assertTail(download.getFile(), stored);
+	}
+
+	/**
+	 * Record what a previous, interrupted download left in the cache
+	 *
+	 * @param stored length of part file, sparse so the stored part takes no disk space
+	 */
+	private void store(DiskCache cache, long stored) throws IOException {
+		CacheableFile file = cache.getCachedUrlFile(server.getUrl("/large"));
+		RandomAccessFile raf = new RandomAccessFile(file.partFile, "rw");
+		try {
+			raf.setLength(stored);
+		} finally {
+			raf.close();
+		}
+		file.length = LENGTH;
+		file.eTag = "\"v0\"";
+		cache.savePartialProgress(file);
+	}
+
+	private HttpDownload open(long stored) throws Exception {
+		HttpDownload download = new HttpDownload(
+				Collections.singletonList(server.getUrl("/large")), 0, 5000, 0, null);
+		assertTrue(download.open(stored, -1, null));
+		return download;
+	}
+
+	/**
+	 * Check downloaded part of the file, stored part was never written
+	 */
+	private static void assertTail(File file, long from) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(from);
+			byte[] block = new byte[64 * 1024];
+			long position = from;
+			int count;
+			while ((count = raf.read(block)) != -1) {
+				for (int i = 0; i < count; i++) {
+					if (block[i] != TestServer.byteAt(position + i, 0))
+						throw new AssertionError("content differs at " + (position + i));
+				}
+				position += count;
+			}
+			assertEquals(LENGTH, position);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Drops written bytes, so nothing is stored
+	 */
+	private static class CountingSink extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
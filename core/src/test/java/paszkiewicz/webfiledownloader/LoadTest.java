@@ -0,0 +1,213 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent downloads against {@link TestServer} with injected faults. Every test prints
+ * throughput, latency percentiles and bytes downloaded again after interrupted transfers.
+ */
+public class LoadTest {
+	private final static int THREADS = 8;
+	private final static int FILES = 32;
+	private final static int FILE_SIZE = 1024 * 1024;
+	private final static RetryPolicy POLICY = new RetryPolicy(10, 10, 100, IOException.class);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TestServer server;
+	private ExecutorService executor;
+	private DiskCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TestServer();
+		executor = Executors.newFixedThreadPool(THREADS);
+		cache = TestDownload.createCache(folder.getRoot());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		executor.shutdownNow();
+		server.close();
+	}
+
+	@Test
+	public void cleanDownloads() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		Report report = run("clean", files, 0);
+		assertEquals(0, report.redownloadedBytes);
+	}
+
+	@Test
+	public void throttledDownloads() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		for (TestServer.Resource r : files) {
+			r.setThrottle(8 * 1024 * 1024);
+		}
+		Report report = run("throttled", files, 0);
+		assertEquals(0, report.redownloadedBytes);
+	}
+
+	@Test
+	public void droppedConnectionsResume() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		for (int i = 0; i < files.size(); i++) {
+			files.get(i).setDrop(FILE_SIZE / 4 + i * 1024, 2);
+		}
+		Report report = run("dropped", files, 0);
+		//stored bytes are continued, nothing is fetched twice
+		assertEquals(0, report.redownloadedBytes);
+		assertEquals(files.size() * 3, report.attempts);
+	}
+
+	@Test
+	public void stalledConnectionsResume() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		for (TestServer.Resource r : files) {
+			r.setStall(FILE_SIZE / 2, 1000, 1);
+		}
+		Report report = run("stalled", files, 200);
+		assertEquals(0, report.redownloadedBytes);
+		assertEquals(files.size() * 2, report.attempts);
+	}
+
+	@Test
+	public void rotatedETagRestartsDownloads() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		for (TestServer.Resource r : files) {
+			r.setValidators(true, false);
+			r.setDrop(FILE_SIZE / 2, 1);
+			r.setRotateEvery(2);
+		}
+		Report report = run("rotated ETag", files, 0);
+		//bytes of the old version are dropped and fetched again
+		assertTrue(report.redownloadedBytes > 0);
+		assertEquals(report.discardedBytes, report.redownloadedBytes);
+	}
+
+	@Test
+	public void rotatedLastModifiedRestartsDownloads() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		for (TestServer.Resource r : files) {
+			r.setValidators(false, true);
+			r.setDrop(FILE_SIZE / 2, 1);
+			r.setRotateEvery(2);
+		}
+		Report report = run("rotated Last-Modified", files, 0);
+		assertTrue(report.redownloadedBytes > 0);
+		assertEquals(report.discardedBytes, report.redownloadedBytes);
+	}
+
+	@Test
+	public void ignoredRangeRestartsDownloads() throws Exception {
+		List<TestServer.Resource> files = addFiles(0);
+		for (TestServer.Resource r : files) {
+			r.setRangeSupported(false);
+			r.setDrop(FILE_SIZE / 2, 1);
+		}
+		Report report = run("no ranges", files, 0);
+		assertTrue(report.redownloadedBytes > 0);
+		assertEquals(report.discardedBytes, report.redownloadedBytes);
+	}
+
+	private List<TestServer.Resource> addFiles(int offset) {
+		List<TestServer.Resource> files = new ArrayList<>();
+		for (int i = 0; i < FILES; i++) {
+			files.add(server.add("/file" + (offset + i), FILE_SIZE));
+		}
+		return files;
+	}
+
+	/**
+	 * Download every file on {@link #THREADS} threads, verify contents and print the report
+	 */
+	private Report run(String name, List<TestServer.Resource> files, final int readTimeout)
+			throws Exception {
+		List<Future<TestDownload>> futures = new ArrayList<>();
+		final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+		long start = System.nanoTime();
+		for (int i = 0; i < files.size(); i++) {
+			final String url = server.getUrl("/file" + i);
+			futures.add(executor.submit(new Callable<TestDownload>() {
+				@Override
+				public TestDownload call() throws Exception {
+					long began = System.nanoTime();
+					TestDownload download = new TestDownload(url, cache, POLICY);
+					download.setReadTimeout(readTimeout);
+					download.run();
+					latencies.add((System.nanoTime() - began) / 1000000);
+					return download;
+				}
+			}));
+		}
+		List<TestDownload> downloads = new ArrayList<>();
+		for (Future<TestDownload> f : futures) {
+			downloads.add(f.get());
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		Report report = new Report();
+		for (int i = 0; i < files.size(); i++) {
+			TestDownload download = downloads.get(i);
+			TestServer.Resource r = files.get(i);
+			assertContent(download.getFile(), r);
+			report.bytes += r.getLength();
+			report.redownloadedBytes += download.getReceivedBytes() - r.getLength();
+			report.discardedBytes += download.getDiscardedBytes();
+			report.attempts += download.getAttempts();
+		}
+		Collections.sort(latencies);
+		System.out.printf("%-22s %3d files, %7.1f MB/s, p50 %5d ms, p99 %5d ms, "
+						+ "%2d retries, re-downloaded %d bytes%n", name, files.size(),
+				report.bytes / 1048576.0 / Math.max(elapsed, 1) * 1000,
+				percentile(latencies, 50), percentile(latencies, 99),
+				report.attempts - files.size(), report.redownloadedBytes);
+		return report;
+	}
+
+	private static long percentile(List<Long> sorted, int percent) {
+		int i = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(i, 0));
+	}
+
+	static void assertContent(File file, TestServer.Resource r) throws IOException {
+		assertEquals(r.getLength(), file.length());
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		try {
+			int version = r.getVersion();
+			for (long i = 0; i < r.getLength(); i++) {
+				if ((byte) in.read() != TestServer.byteAt(i, version))
+					throw new AssertionError("content differs at " + i);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class Report {
+		long bytes;
+		long redownloadedBytes;
+		long discardedBytes;
+		int attempts;
+	}
+}
@@ -0,0 +1,110 @@
+package paszkiewicz.webfiledownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows kept in memory instead of SQLite. Copies of entries are stored, so only what {@link
+ * DiskCache} writes is persisted, as it would be on android.
+ */
+class MemoryDatabase implements CacheDatabase {
+	private final Map<String, CacheIndex.Entry> rows = new HashMap<>();
+
+	@Override
+	public synchronized List<CacheIndex.Entry> readAll() {
+		List<CacheIndex.Entry> entries = new ArrayList<>();
+		for (CacheIndex.Entry e : rows.values()) {
+			entries.add(copy(e));
+		}
+		Collections.sort(entries, new Comparator<CacheIndex.Entry>() {
+			@Override
+			public int compare(CacheIndex.Entry a, CacheIndex.Entry b) {
+				return a.date < b.date ? -1 : a.date == b.date ? 0 : 1;
+			}
+		});
+		return entries;
+	}
+
+	@Override
+	public synchronized boolean insert(CacheIndex.Entry entry) {
+		if (rows.containsKey(entry.key))
+			return false;
+		rows.put(entry.key, copy(entry));
+		return true;
+	}
+
+	@Override
+	public synchronized List<CacheIndex.Entry> insertAll(List<CacheIndex.Entry> entries) {
+		List<CacheIndex.Entry> inserted = new ArrayList<>();
+		for (CacheIndex.Entry e : entries) {
+			if (insert(e))
+				inserted.add(e);
+		}
+		return inserted;
+	}
+
+	@Override
+	public synchronized void update(CacheIndex.Entry entry) {
+		if (rows.containsKey(entry.key))
+			rows.put(entry.key, copy(entry));
+	}
+
+	@Override
+	public synchronized void touch(String key, long date) {
+		CacheIndex.Entry e = rows.get(key);
+		if (e != null) {
+			e.date = date;
+			e.hits++;
+		}
+	}
+
+	@Override
+	public synchronized void touchAll(List<CacheIndex.Entry> entries) {
+		for (CacheIndex.Entry e : entries) {
+			CacheIndex.Entry row = rows.get(e.key);
+			if (row != null) {
+				row.date = e.date;
+				row.hits = e.hits;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void delete(String key) {
+		rows.remove(key);
+	}
+
+	@Override
+	public synchronized void deleteAll(List<CacheIndex.Entry> entries) {
+		for (CacheIndex.Entry e : entries) {
+			rows.remove(e.key);
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return stored row of the key, null if there is none
+	 */
+	synchronized CacheIndex.Entry get(String key) {
+		return rows.get(key);
+	}
+
+	private static CacheIndex.Entry copy(CacheIndex.Entry e) {
+		CacheIndex.Entry c = new CacheIndex.Entry(e.key, e.url, e.filename, e.date);
+		c.length = e.length;
+		c.eTag = e.eTag;
+		c.hits = e.hits;
+		c.external = e.external;
+		c.complete = e.complete;
+		c.ranges = e.ranges != null ? new ByteRanges(e.ranges) : null;
+		c.seed = e.seed;
+		return c;
+	}
+}
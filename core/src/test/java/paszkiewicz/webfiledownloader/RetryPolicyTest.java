@@ -0,0 +1,163 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link RetryPolicy} decisions and {@link RetryLoop} driven by them
+ */
+public class RetryPolicyTest {
+	@Test
+	public void backoffIsCappedAtMaxDelay() {
+		RetryPolicy policy = new RetryPolicy(100, 100, 1000);
+		for (int attempt = 1; attempt < 100; attempt++) {
+			for (int i = 0; i < 100; i++) {
+				long delay = policy.getDelay(attempt);
+				assertTrue("attempt " + attempt + " waits " + delay, delay < 1000);
+			}
+		}
+	}
+
+	@Test
+	public void jitterStaysBelowGrowingLimit() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 10000);
+		long[] limits = {100, 200, 400, 800, 1600, 3200, 6400, 10000, 10000};
+		for (int attempt = 1; attempt <= limits.length; attempt++) {
+			long max = 0;
+			for (int i = 0; i < 1000; i++) {
+				long delay = policy.getDelay(attempt);
+				assertTrue(delay >= 0 && delay < limits[attempt - 1]);
+				max = Math.max(max, delay);
+			}
+			//full jitter spreads waits over the whole limit
+			assertTrue("attempt " + attempt + " waits at most " + max,
+					max >= limits[attempt - 1] / 2);
+		}
+	}
+
+	@Test
+	public void zeroDelayNeverWaits() {
+		assertEquals(0, new RetryPolicy(3, 0, 0).getDelay(1));
+		assertEquals(0, new RetryPolicy(3, 0, 0).getDelay(5));
+	}
+
+	@Test
+	public void onlyRetryableTypesAreRetried() {
+		RetryPolicy policy = new RetryPolicy(5, 0, 0, SocketException.class,
+				SocketTimeoutException.class);
+		assertTrue(policy.shouldRetry(new SocketException(), 1));
+		assertTrue(policy.shouldRetry(new SocketTimeoutException(), 1));
+		//subclasses are retried too
+		assertTrue(policy.shouldRetry(new ConnectException(), 1));
+		assertFalse(policy.shouldRetry(new IOException(), 1));
+		assertFalse(policy.shouldRetry(new EOFException(), 1));
+		assertFalse(policy.shouldRetry(new IllegalStateException(), 1));
+		assertEquals(2, policy.getRetryable().size());
+	}
+
+	@Test
+	public void maxAttemptsStopsRetrying() {
+		RetryPolicy policy = new RetryPolicy(3, 0, 0, IOException.class);
+		assertTrue(policy.shouldRetry(new IOException(), 1));
+		assertTrue(policy.shouldRetry(new IOException(), 2));
+		assertFalse(policy.shouldRetry(new IOException(), 3));
+		assertFalse(RetryPolicy.NONE.shouldRetry(new SocketException(), 1));
+	}
+
+	@Test(timeout = 5000)
+	public void loopStopsAfterMaxAttempts() throws Exception {
+		CountingLoop loop = new CountingLoop(new RetryPolicy(3, 1, 1, IOException.class), 10,
+				new IOException("failed"));
+		try {
+			loop.run();
+			fail();
+		} catch (IOException e) {
+			assertEquals("failed", e.getMessage());
+		}
+		assertEquals(3, loop.attempts);
+		assertEquals(2, loop.retries);
+	}
+
+	@Test(timeout = 5000)
+	public void loopRetriesUntilAttemptSucceeds() throws Exception {
+		CountingLoop loop = new CountingLoop(new RetryPolicy(5, 1, 1, IOException.class), 2,
+				new IOException());
+		assertTrue(loop.run());
+		assertEquals(3, loop.attempts);
+		assertEquals(2, loop.retries);
+	}
+
+	@Test(timeout = 5000)
+	public void loopDoesNotRetryOtherTypes() throws Exception {
+		IllegalStateException error = new IllegalStateException();
+		CountingLoop loop = new CountingLoop(new RetryPolicy(5, 1, 1, IOException.class), 2,
+				error);
+		try {
+			loop.run();
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(error, e);
+		}
+		assertEquals(1, loop.attempts);
+		assertEquals(0, loop.retries);
+	}
+
+	@Test(timeout = 5000)
+	public void stoppedLoopEndsWhileWaiting() throws Exception {
+		CountingLoop loop = new CountingLoop(new RetryPolicy(5, 60000, 60000,
+				IOException.class), 2, new IOException()) {
+			@Override
+			protected boolean isStopped() {
+				return retries > 0;
+			}
+		};
+		assertFalse(loop.run());
+		assertEquals(1, loop.attempts);
+	}
+
+	/**
+	 * Fails given amount of attempts, then succeeds
+	 */
+	private static class CountingLoop extends RetryLoop {
+		private final int failures;
+		private final Exception error;
+		int attempts;
+		int retries;
+
+		CountingLoop(RetryPolicy policy, int failures, Exception error) {
+			super(policy);
+			this.failures = failures;
+			this.error = error;
+		}
+
+		@Override
+		protected boolean attempt(int failedAttempts) throws Exception {
+			assertEquals(attempts, failedAttempts);
+			attempts++;
+			if (attempts <= failures)
+				throw error;
+			return true;
+		}
+
+		@Override
+		protected boolean isStopped() {
+			return false;
+		}
+
+		@Override
+		protected void onRetry(int failedAttempts) {
+			retries++;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs {@link DownloadJob} over {@link HttpDownload} against a cache with rows kept in memory,
+ * the way {@code WebLoaderTask} drives it
+ */
+class TestDownload {
+	/**
+	 * Deletes evicted files right away
+	 */
+	final static Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final String url;
+	private final DiskCache cache;
+	private final RetryPolicy policy;
+	private final FileTransfer transfer = new FileTransfer(16 * 1024);
+	private final DownloadMetrics metrics;
+	private int readTimeout = 0;
+
+	private CacheableFile result;
+	private long discardedBytes;
+	private int attempts;
+
+	/**
+	 * @param url    url of remote file
+	 * @param cache  cache the file is downloaded into, stored bytes of the url are continued
+	 * @param policy decides which failed attempts are retried
+	 */
+	TestDownload(String url, DiskCache cache, RetryPolicy policy) {
+		this.url = url;
+		this.cache = cache;
+		this.policy = policy;
+		this.metrics = new DownloadMetrics(url);
+	}
+
+	/**
+	 * @return cache over {@link MemoryDatabase} in given directory
+	 */
+	static DiskCache createCache(File dir) {
+		return new DiskCache(new DiskCache.Shared(), new MemoryDatabase(), dir, 1000, DIRECT);
+	}
+
+	void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Download until the file is complete or retries run out
+	 *
+	 * @throws Exception error of the last attempt
+	 */
+	void run() throws Exception {
+		DownloadJob job = new DownloadJob(url, new Source(), transfer, metrics,
+				new DownloadJob.Listener() {
+					@Override
+					public boolean isStopped() {
+						return false;
+					}
+
+					@Override
+					public boolean isCancelled() {
+						return false;
+					}
+
+					@Override
+					public void onProgress(long current, long length) {
+					}
+
+					@Override
+					public void onLoaded(CacheableFile file) {
+					}
+
+					@Override
+					public boolean preallocate(FileOutputStream output, long length) {
+						return false;
+					}
+				});
+		job.setRetryPolicy(policy);
+		result = job.run(cache);
+		if (result == null)
+			throw new IOException("download failed");
+	}
+
+	/**
+	 * @return complete file in the cache
+	 */
+	File getFile() {
+		return result.file;
+	}
+
+	long getLength() {
+		return result.length;
+	}
+
+	String getValidator() {
+		return result.eTag;
+	}
+
+	/**
+	 * @return body bytes read from the network by all attempts
+	 */
+	long getReceivedBytes() {
+		return metrics.networkBytes;
+	}
+
+	/**
+	 * @return stored bytes thrown away because server changed the file
+	 */
+	long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Opens the url without mirrors, failing the attempt on unexpected status
+	 */
+	private class Source extends ContentSource {
+		private HttpDownload download;
+
+		@Override
+		InputStream open(CacheableFile file) throws Exception {
+			attempts++;
+			download = new HttpDownload(Collections.singletonList(url), 0, 5000, readTimeout,
+					null);
+			if (!download.open(file))
+				throw new IOException("http " + download.getResponseCode());
+			return download.getInputStream();
+		}
+
+		@Override
+		boolean isNetwork() {
+			return true;
+		}
+
+		@Override
+		void abort() {
+			HttpDownload download = this.download;
+			if (download != null)
+				download.abort();
+		}
+
+		@Override
+		void release() {
+			if (download != null) {
+				discardedBytes += download.getDiscardedBytes();
+				download.disconnect();
+				download = null;
+			}
+		}
+	}
+}
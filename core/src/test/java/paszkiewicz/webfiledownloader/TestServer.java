@@ -0,0 +1,376 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process http server serving generated files, with faults injected per file.<br> Written on
+ * plain sockets, so connections can be reset in the middle of a body. Supports single range
+ * requests, every response closes its connection.
+ */
+class TestServer implements Closeable {
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+	private final static int BLOCK_SIZE = 64 * 1024;
+
+	private final ServerSocket socket;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicInteger brokenResponses = new AtomicInteger();
+
+	TestServer() throws IOException {
+		socket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	/**
+	 * @param path   path of the file, starting with /
+	 * @param length length of the file in bytes
+	 * @return file to configure
+	 */
+	Resource add(String path, long length) {
+		Resource r = new Resource(length);
+		resources.put(path, r);
+		return r;
+	}
+
+	String getUrl(String path) {
+		return "http://127.0.0.1:" + socket.getLocalPort() + path;
+	}
+
+	/**
+	 * @return body bytes written to all connections, including bytes lost by dropped ones
+	 */
+	long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * Content of every served file, same for all files of equal version
+	 *
+	 * @param offset  position in the file
+	 * @param version version of the file, see {@link Resource#rotate()}
+	 * @return byte at the position
+	 */
+	static byte byteAt(long offset, int version) {
+		return (byte) (offset ^ (offset >>> 13) ^ (version * 0x5b));
+	}
+
+	/**
+	 * @return responses that could not be written because client closed the connection
+	 */
+	int getBrokenResponses() {
+		return brokenResponses.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+		executor.shutdownNow();
+	}
+
+	private void accept() {
+		while (!socket.isClosed()) {
+			final Socket client;
+			try {
+				client = socket.accept();
+			} catch (IOException e) {
+				return; //closed
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serve(client);
+					} catch (IOException e) {
+						//client went away
+						brokenResponses.incrementAndGet();
+					} finally {
+						try {
+							client.close();
+						} catch (IOException ignored) {
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+				ASCII));
+		String requestLine = in.readLine();
+		if (requestLine == null)
+			return;
+		String range = null;
+		String line;
+		while ((line = in.readLine()) != null && !line.isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range"))
+				range = line.substring(colon + 1).trim();
+		}
+		String[] parts = requestLine.split(" ");
+		OutputStream out = client.getOutputStream();
+		Resource r = parts.length > 1 ? resources.get(parts[1]) : null;
+		if (r == null) {
+			out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+					.getBytes(ASCII));
+			return;
+		}
+		r.serve(client, out, range);
+	}
+
+	/**
+	 * Served file and its faults. Faults apply to the given amount of next responses, so retries
+	 * eventually get through.
+	 */
+	class Resource {
+		private final long length;
+		private volatile int version;
+		private volatile boolean isETag = true;
+		private volatile boolean isLastModified = true;
+		private volatile boolean isRangeSupported = true;
+		private volatile long bytesPerSecond;
+		private volatile int rotateEvery;
+		private long dropAfter;
+		private int drops;
+		private long stallAfter;
+		private long stallTime;
+		private int stalls;
+		private long delayTime;
+		private int delays;
+		private volatile String fullStatus;
+		private int requests;
+
+		private Resource(long length) {
+			this.length = length;
+		}
+
+		long getLength() {
+			return length;
+		}
+
+		int getVersion() {
+			return version;
+		}
+
+		synchronized int getRequests() {
+			return requests;
+		}
+
+		/**
+		 * Change content and validators of the file
+		 */
+		void rotate() {
+			version++;
+		}
+
+		/**
+		 * @param requests rotate before every n-th request, 0 to never rotate
+		 */
+		void setRotateEvery(int requests) {
+			rotateEvery = requests;
+		}
+
+		/**
+		 * @param eTag         send ETag header
+		 * @param lastModified send Last-Modified header
+		 */
+		void setValidators(boolean eTag, boolean lastModified) {
+			isETag = eTag;
+			isLastModified = lastModified;
+		}
+
+		/**
+		 * @param supported false to ignore Range header and always send the whole file
+		 */
+		void setRangeSupported(boolean supported) {
+			isRangeSupported = supported;
+		}
+
+		/**
+		 * @param bytesPerSecond body rate limit of every response, 0 for no limit
+		 */
+		void setThrottle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * Reset connection after part of the body was sent
+		 *
+		 * @param afterBytes amount of body bytes sent before the reset
+		 * @param times      amount of responses to drop
+		 */
+		synchronized void setDrop(long afterBytes, int times) {
+			dropAfter = afterBytes;
+			drops = times;
+		}
+
+		/**
+		 * Stop sending body for a while
+		 *
+		 * @param afterBytes amount of body bytes sent before the stall
+		 * @param time       length of the stall in milliseconds
+		 * @param times      amount of responses to stall
+		 */
+		synchronized void setStall(long afterBytes, long time, int times) {
+			stallAfter = afterBytes;
+			stallTime = time;
+			stalls = times;
+		}
+
+		/**
+		 * Wait before sending response headers
+		 *
+		 * @param time  length of the delay in milliseconds
+		 * @param times amount of responses to delay
+		 */
+		synchronized void setResponseDelay(long time, int times) {
+			delayTime = time;
+			delays = times;
+		}
+
+		/**
+		 * @param status status sent with empty body instead of the whole file, eg. "503 Service
+		 *               Unavailable". Null to send the file, range requests are served either way.
+		 */
+		void setFullStatus(String status) {
+			fullStatus = status;
+		}
+
+		private void serve(Socket client, OutputStream out, String range) throws IOException {
+			long drop = -1;
+			long stall = -1;
+			long stallFor;
+			long delay = 0;
+			int version;
+			synchronized (this) {
+				requests++;
+				if (rotateEvery > 0 && requests % rotateEvery == 0)
+					this.version++;
+				version = this.version;
+				if (drops > 0) {
+					drops--;
+					drop = dropAfter;
+				}
+				if (stalls > 0) {
+					stalls--;
+					stall = stallAfter;
+				}
+				stallFor = stallTime;
+				if (delays > 0) {
+					delays--;
+					delay = delayTime;
+				}
+			}
+			if (delay > 0)
+				sleep(delay);
+			String failure = fullStatus;
+			if (failure != null && range == null) {
+				out.write(("HTTP/1.1 " + failure + "\r\nContent-Length: 0\r\nConnection: close"
+						+ "\r\n\r\n").getBytes(ASCII));
+				return;
+			}
+
+			long start = 0;
+			long end = length;
+			String status = "200 OK";
+			StringBuilder headers = new StringBuilder();
+			if (range != null && isRangeSupported && range.startsWith("bytes=")) {
+				String[] bounds = range.substring(6).split("-", -1);
+				start = Long.parseLong(bounds[0]);
+				if (!bounds[1].isEmpty())
+					end = Math.min(length, Long.parseLong(bounds[1]) + 1);
+				if (start >= length) {
+					out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */"
+							+ length + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+							.getBytes(ASCII));
+					return;
+				}
+				status = "206 Partial Content";
+				headers.append("Content-Range: bytes ").append(start).append('-')
+						.append(end - 1).append('/').append(length).append("\r\n");
+			}
+			if (isETag)
+				headers.append("ETag: \"v").append(version).append("\"\r\n");
+			if (isLastModified)
+				headers.append("Last-Modified: ").append(formatDate(version)).append("\r\n");
+			out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + (end - start) + "\r\n"
+					+ headers + "Connection: close\r\n\r\n").getBytes(ASCII));
+
+			byte[] block = new byte[BLOCK_SIZE];
+			long sent = 0;
+			long began = System.nanoTime();
+			for (long position = start; position < end; ) {
+				int count = (int) Math.min(block.length, end - position);
+				if (drop >= 0)
+					count = (int) Math.min(count, Math.max(drop - sent, 1));
+				if (stall >= 0)
+					count = (int) Math.min(count, Math.max(stall - sent, 1));
+				if (stall >= 0 && sent >= stall) {
+					out.flush();
+					sleep(stallFor);
+					stall = -1;
+				}
+				if (drop >= 0 && sent >= drop) {
+					out.flush();
+					//RST instead of FIN, so client can't take it for end of body
+					client.setSoLinger(true, 0);
+					return;
+				}
+				for (int i = 0; i < count; i++) {
+					block[i] = byteAt(position + i, version);
+				}
+				out.write(block, 0, count);
+				position += count;
+				sent += count;
+				sentBytes.addAndGet(count);
+				long rate = bytesPerSecond;
+				if (rate > 0) {
+					long due = began + sent * 1000000000L / rate;
+					long wait = (due - System.nanoTime()) / 1000000;
+					if (wait > 0)
+						sleep(wait);
+				}
+			}
+			out.flush();
+		}
+	}
+
+	private static String formatDate(int version) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+				Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(1500000000000L + version * 1000L));
+	}
+
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IOException("server stopped");
+		}
+	}
+}
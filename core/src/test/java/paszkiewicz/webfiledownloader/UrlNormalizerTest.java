@@ -0,0 +1,64 @@
+package paszkiewicz.webfiledownloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class UrlNormalizerTest {
+	@Test
+	public void schemeIsKeptByDefault() {
+		UrlNormalizer normalizer = new UrlNormalizer.Default();
+		assertEquals("https://example.com/a", normalizer.normalize("HTTPS://Example.com:443/a"));
+		assertEquals("http://example.com/a", normalizer.normalize("http://example.com:80/a"));
+		assertNotEquals(normalizer.normalize("https://example.com/a"),
+				normalizer.normalize("http://example.com/a"));
+		//only the default port of the scheme is dropped
+		assertEquals("https://example.com:80/a", normalizer.normalize("https://example.com:80/a"));
+	}
+
+	@Test
+	public void httpsIsFoldedWhenEnabled() {
+		UrlNormalizer normalizer = new UrlNormalizer.Default(true);
+		assertEquals("http://example.com/a", normalizer.normalize("https://example.com:443/a"));
+		assertEquals(normalizer.normalize("https://example.com/a?x=1"),
+				normalizer.normalize("http://example.com:80/a?x=1"));
+	}
+
+	@Test
+	public void namedParametersAreStripped() {
+		UrlNormalizer normalizer = new UrlNormalizer.Default("token", "sig");
+		assertEquals("http://example.com/a?id=1",
+				normalizer.normalize("http://example.com/a?token=abc&id=1&sig"));
+		//names are matched whole and case sensitive
+		assertEquals("http://example.com/a?Token=1&tokens=2",
+				normalizer.normalize("http://example.com/a?tokens=2&Token=1"));
+	}
+
+	@Test
+	public void prefixStripsEveryMatchingParameter() {
+		UrlNormalizer normalizer = new UrlNormalizer.Default("utm_*", "X-Amz-*");
+		assertEquals("http://example.com/a?id=1", normalizer.normalize(
+				"http://example.com/a?utm_source=x&id=1&utm_medium=y&X-Amz-Signature=z"));
+		//prefix itself is stripped, longer name not starting with it is kept
+		assertEquals("http://example.com/a?xutm_=1",
+				normalizer.normalize("http://example.com/a?utm_=0&xutm_=1"));
+		//everything is stripped by empty prefix
+		assertEquals("http://example.com/a",
+				new UrlNormalizer.Default("*").normalize("http://example.com/a?a=1&b=2"));
+	}
+
+	@Test
+	public void emptyParametersAndFragmentAreDropped() {
+		UrlNormalizer normalizer = new UrlNormalizer.Default();
+		assertEquals("http://example.com/?a=1&b=2",
+				normalizer.normalize("http://example.com?b=2&&a=1&#top"));
+		assertEquals("http://example.com/a", normalizer.normalize("http://example.com/a?"));
+	}
+
+	@Test
+	public void urlWithoutSchemeKeepsItsBase() {
+		UrlNormalizer normalizer = new UrlNormalizer.Default("utm_*");
+		assertEquals("Example.com/a?b=1", normalizer.normalize("Example.com/a?utm_x=1&b=1"));
+	}
+}
@@ -0,0 +1,140 @@
+package paszkiewicz.webfiledownloader;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays access log against {@link EvictionPolicy} on the same index the cache uses, to compare
+ * policies before picking one.<br> Development tool, not part of the library. Run it with {@code
+ * gradle simulateEviction -Ptrace=<file> -Pcapacity=<bytes>} from the core module.
+ */
+public abstract class EvictionSimulator {
+	/**
+	 * Replay trace on empty cache
+	 *
+	 * @param policy   policy to evaluate, use new instance for every run
+	 * @param trace    accesses in order they happened
+	 * @param capacity cache size in bytes
+	 * @return hit ratios
+	 */
+	public static Result simulate(EvictionPolicy policy, List<Access> trace, long capacity) {
+		CacheIndex index = new CacheIndex(policy);
+		Result r = new Result();
+		long clock = 0;
+		for (Access a : trace) {
+			clock++;
+			r.requests++;
+			r.requestedBytes += a.size;
+			if (index.touch(a.url, clock) != null) {
+				r.hits++;
+				r.hitBytes += a.size;
+				continue;
+			}
+			if (a.size > capacity)
+				continue; //never fits, don't flush whole cache for it
+			CacheIndex.Entry e = new CacheIndex.Entry(a.url, a.url, clock);
+			e.length = a.size;
+			index.put(e);
+			while (index.getTotalBytes() > capacity && index.evictEldest(a.url) != null) {
+				r.evictions++;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Read trace, one access per line as url and size in bytes separated by whitespace. Empty
+	 * lines and lines starting with # are skipped.
+	 *
+	 * @param reader trace source, not closed
+	 * @return parsed accesses
+	 * @throws IOException if reading fails or line is malformed
+	 */
+	public static List<Access> readTrace(Reader reader) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+		List<Access> trace = new ArrayList<>();
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] parts = line.split("\\s+");
+			if (parts.length < 2)
+				throw new IOException("line " + lineNumber + ": expected url and size");
+			try {
+				trace.add(new Access(parts[0], Long.parseLong(parts[1])));
+			} catch (NumberFormatException e) {
+				throw new IOException("line " + lineNumber + ": invalid size " + parts[1]);
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Compare bundled policies: EvictionSimulator trace_file capacity_bytes
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: EvictionSimulator <trace file> <capacity bytes>");
+			System.exit(1);
+		}
+		List<Access> trace;
+		Reader reader = new FileReader(args[0]);
+		try {
+			trace = readTrace(reader);
+		} finally {
+			reader.close();
+		}
+		long capacity = Long.parseLong(args[1]);
+		System.out.println("LRU  " + simulate(new EvictionPolicy.Lru(), trace, capacity));
+		System.out.println("LFU  " + simulate(new EvictionPolicy.Lfu(), trace, capacity));
+		System.out.println("GDSF " + simulate(new EvictionPolicy.Gdsf(), trace, capacity));
+	}
+
+	/**
+	 * Single request of a file
+	 */
+	public static class Access {
+		public final String url;
+		public final long size;
+
+		public Access(String url, long size) {
+			this.url = url;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Outcome of replayed trace
+	 */
+	public static class Result {
+		public long requests;
+		public long hits;
+		public long requestedBytes;
+		public long hitBytes;
+		public long evictions;
+
+		public double getHitRatio() {
+			return requests == 0 ? 0 : (double) hits / requests;
+		}
+
+		/**
+		 * @return fraction of requested bytes served from cache
+		 */
+		public double getByteHitRatio() {
+			return requestedBytes == 0 ? 0 : (double) hitBytes / requestedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hit ratio %.4f, byte hit ratio %.4f, evictions %d",
+					getHitRatio(), getByteHitRatio(), evictions);
+		}
+	}
+}
@@ -1,29 +1,160 @@
 package paszkiewicz.webfiledownloader;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * Task that opens input stream from remote content uri (no column indicating local file uri)
  */
 class ContentLoaderTask extends LoaderTask {
-	ContentLoaderTask(Context context, String url, int mobileWarning, int cacheSize, int timeout) {
+	private boolean directAccess = false;
+	private AssetFileDescriptor descriptor;
+
+	ContentLoaderTask(Context context, String url, long mobileWarning, int cacheSize, int timeout) {
 		super(context, url, mobileWarning, cacheSize, timeout);
 	}
 
+	/**
+	 * @param directAccess if true content backed by local file is returned as {@link
+	 *                     CacheableFile#directHandle} instead of being copied into cache
+	 */
+	void setDirectAccess(boolean directAccess) {
+		this.directAccess = directAccess;
+	}
+
+	@Override
+	protected CacheableFile openDirect() throws Exception {
+		if (!directAccess)
+			return null;
+		AssetFileDescriptor afd = getContext().getContentResolver()
+				.openAssetFileDescriptor(Uri.parse(url), "r");
+		if (afd == null)
+			return null;
+		if (!isSeekable(afd)) {
+			//pipe or socket, it can only be streamed once so copy it into cache
+			afd.close();
+			return null;
+		}
+		CacheableFile f = new CacheableFile(url, null);
+		f.directHandle = afd;
+		f.length = afd.getLength();
+		return f;
+	}
+
+	/**
+	 * Complete copy is reused only if provider still reports the same size and modification time
+	 */
+	@Override
+	protected boolean isCacheValid(CacheableFile imageFile) throws Exception {
+		String validator = queryValidator(Uri.parse(url));
+		return validator == null || validator.equals(imageFile.eTag);
+	}
+
 	@Override
 	protected InputStream openInputStream(CacheableFile imageFile) throws Exception {
 		Uri uri = Uri.parse(url);
+		String validator = queryValidator(uri);
+		descriptor = getContext().getContentResolver().openAssetFileDescriptor(uri, "r");
+		InputStream input;
+		if (descriptor == null) {
+			input = getContext().getContentResolver().openInputStream(uri);
+		} else {
+			if (fileLength <= 0 && descriptor.getLength() > 0)
+				fileLength = descriptor.getLength();
+			input = descriptor.createInputStream();
+		}
+		if (input == null)
+			return null;
+
+		if (imageFile.isPartiallyLoaded() && validator != null
+				&& validator.equals(imageFile.eTag)) {
+			//same version of the source, continue copy where it stopped
+			imageFile.partIsValid = true;
+			fileLength = imageFile.length;
+		} else {
+			imageFile.eTag = validator;
+			imageFile.length = fileLength;
+		}
+		return input;
+	}
+
+	/**
+	 * Query provider metadata, setting {@link #fileLength} on the way
+	 *
+	 * @param uri content uri
+	 * @return validator built from size and modification date, or null if provider reports
+	 * neither
+	 */
+	private String queryValidator(Uri uri) {
 		Cursor c = getContext().getContentResolver().query(uri, null, null, null, null);
-		if (c != null && c.moveToFirst()) {
-			long fileLen = c.getLong(c.getColumnIndex(OpenableColumns.SIZE));
-			fileLength = fileLen > 0 ? fileLen : 0;
+		if (c == null)
+			return null;
+		long size = 0;
+		String modified = null;
+		try {
+			if (!c.moveToFirst())
+				return null;
+			int sizeColumn = c.getColumnIndex(OpenableColumns.SIZE);
+			if (sizeColumn >= 0) {
+				long fileLen = c.getLong(sizeColumn);
+				size = fileLen > 0 ? fileLen : 0;
+			}
+			fileLength = size;
+			int modifiedColumn = c.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+			if (modifiedColumn < 0)
+				modifiedColumn = c.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+			if (modifiedColumn >= 0 && !c.isNull(modifiedColumn))
+				modified = c.getString(modifiedColumn);
+		} finally {
 			c.close();
 		}
-		return getContext().getContentResolver().openInputStream(uri);
+		if (size <= 0 && modified == null)
+			return null;
+		return size + ":" + (modified != null ? modified : "");
+	}
+
+	/**
+	 * Content backed by regular file is copied channel to channel, everything else goes through
+	 * stream copy loop. Copied part is skipped by whichever path is taken.
+	 */
+	@Override
+	protected boolean copy(InputStream input, OutputStream output, long progress,
+						   FileTransfer.Listener listener) throws IOException {
+		long start = -1;
+		long length = -1;
+		if (descriptor != null && isSeekable(descriptor)) {
+			start = descriptor.getStartOffset();
+			if (descriptor.getDeclaredLength() != AssetFileDescriptor.UNKNOWN_LENGTH)
+				length = descriptor.getDeclaredLength();
+		}
+		return transfer.copyResumed(input, start, length, output, progress, listener);
+	}
+
+	@Override
+	protected void doFinally() {
+		if (descriptor != null) {
+			try {
+				descriptor.close();
+			} catch (IOException ignored) {
+			}
+			descriptor = null;
+		}
+	}
+
+	/**
+	 * @param afd opened descriptor
+	 * @return true if descriptor points at regular file that supports positioned reads
+	 */
+	private static boolean isSeekable(AssetFileDescriptor afd) {
+		return afd.getParcelFileDescriptor().getStatSize() >= 0;
 	}
 }
@@ -0,0 +1,197 @@
+package paszkiewicz.webfiledownloader;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.Loader;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+
+/**
+ * Process wide owner of downloads whose {@link WebFileViewModel} was cleared.<br> Detached
+ * transfers keep running and their progress is tracked, so view model created later for the same
+ * url picks them up instead of opening new connection. Amount of detached downloads and time they
+ * wait to be picked up are limited, see {@link #setLimits(int, long)}. All methods must be called
+ * on the main thread.
+ */
+public final class DownloadEngine {
+	private final static int DEFAULT_MAX_DETACHED = 4;
+	private final static long DEFAULT_KEEP_ALIVE = 60 * 1000;
+
+	private static DownloadEngine instance;
+
+	/**
+	 * Detached downloads by url, oldest first
+	 */
+	private final LinkedHashMap<String, Detached> detached = new LinkedHashMap<>();
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private int maxDetached = DEFAULT_MAX_DETACHED;
+	private long keepAlive = DEFAULT_KEEP_ALIVE;
+
+	private DownloadEngine() {
+	}
+
+	@MainThread
+	public static DownloadEngine getInstance() {
+		if (instance == null)
+			instance = new DownloadEngine();
+		return instance;
+	}
+
+	/**
+	 * @param maxDetached max amount of detached downloads, oldest one is cancelled when exceeded.
+	 *                    0 cancels downloads together with their view model.
+	 * @param keepAlive   time (in milliseconds) detached download is kept, running or finished,
+	 *                    until it's picked up. It's cancelled or dropped afterwards.
+	 */
+	@MainThread
+	public void setLimits(int maxDetached, long keepAlive) {
+		this.maxDetached = maxDetached;
+		this.keepAlive = keepAlive;
+		trim();
+	}
+
+	/**
+	 * Cancel all detached downloads
+	 */
+	@MainThread
+	public void cancelAll() {
+		while (!detached.isEmpty()) {
+			drop(detached.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Take over running task from cleared view model
+	 *
+	 * @param key           url of the task
+	 * @param task          running task, its listener must be unregistered already
+	 * @param progress      last progress reported by the task
+	 * @param max           last max progress reported by the task
+	 * @param isDeterminate last determinate flag reported by the task
+	 * @return true if task was taken over, false if limits don't allow it and it has to be
+	 * cancelled
+	 */
+	boolean detach(String key, LoaderTask task, long progress, long max, boolean isDeterminate) {
+		if (maxDetached <= 0 || keepAlive <= 0)
+			return false;
+		drop(key);
+		Detached d = new Detached(key, task);
+		d.progress = progress;
+		d.max = max;
+		d.isDeterminate = isDeterminate;
+		task.setCallback(d);
+		task.registerListener(task.getId(), d);
+		detached.put(key, d);
+		handler.postDelayed(d, keepAlive);
+		trim();
+		return true;
+	}
+
+	/**
+	 * Hand detached task back to a view model
+	 *
+	 * @param key url of the task
+	 * @return detached task with its progress, or null if there is none. Caller must register
+	 * its own callback and listener.
+	 */
+	@Nullable
+	Detached reattach(String key) {
+		Detached d = detached.remove(key);
+		if (d != null) {
+			handler.removeCallbacks(d);
+			d.task.unregisterListener(d);
+		}
+		return d;
+	}
+
+	/**
+	 * Remove detached download, cancelling it if it's still running
+	 */
+	private void drop(String key) {
+		Detached d = reattach(key);
+		if (d != null)
+			d.cancel();
+	}
+
+	private void trim() {
+		while (detached.size() > Math.max(maxDetached, 0)) {
+			drop(detached.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Download running without a view model, records progress and result until it's picked up
+	 */
+	final class Detached implements WebFileDownloader.Callback,
+			Loader.OnLoadCompleteListener<CacheableFile>, Runnable {
+		final String key;
+		final LoaderTask task;
+		volatile long progress;
+		volatile long max;
+		volatile boolean isDeterminate;
+		volatile boolean isCancelled;
+		boolean isComplete;
+		CacheableFile result;
+
+		private Detached(String key, LoaderTask task) {
+			this.key = key;
+			this.task = task;
+		}
+
+		/**
+		 * Stop the task or release its result, for detached download that won't be picked up
+		 */
+		void cancel() {
+			if (isComplete) {
+				if (result != null)
+					result.closeDirectHandle();
+			} else {
+				isCancelled = true;
+				task.cancelLoadInBackground();
+			}
+		}
+
+		@Override
+		public boolean isFinished() {
+			return isCancelled;
+		}
+
+		@Override
+		public void onUpdateDownloadProgress(int loaderId, long current, long max, boolean isDeterminate) {
+			this.progress = current;
+			this.max = max;
+			this.isDeterminate = isDeterminate;
+		}
+
+		@Override
+		public void onDownloadError(int loaderId, String message, String stacktrace) {
+		}
+
+		@Override
+		public void onFileLoaded(int loaderId, File downloadedFile) {
+		}
+
+		@Override
+		public void onDownloadWarning(int loaderId, String message, long filesize) {
+		}
+
+		@Override
+		public void onLoadComplete(@NonNull Loader<CacheableFile> loader, @Nullable CacheableFile data) {
+			isComplete = true;
+			result = data;
+		}
+
+		/**
+		 * Keep alive time passed without anyone picking the download up
+		 */
+		@Override
+		public void run() {
+			if (detached.get(key) == this)
+				drop(key);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package paszkiewicz.webfiledownloader;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors running download tasks, separate from the shared AsyncTask pool.<br> Network
+ * transfers and disk only work (cache hits, invalidation, eviction) use different pools so slow
+ * server never delays cache hits. Library owned pools are created on first use unless caller
+ * provides its own.
+ */
+public final class DownloadExecutors {
+	private final static int NETWORK_THREADS = 4;
+	private final static int DISK_THREADS = 2;
+	private final static int CONNECT_THREADS = 8;
+	private final static long KEEP_ALIVE_SECONDS = 30;
+
+	private static Executor networkExecutor;
+	private static Executor diskExecutor;
+	private static Executor connectExecutor;
+	private static Executor writerExecutor;
+	private static Executor abortExecutor;
+
+	private DownloadExecutors() {
+	}
+
+	/**
+	 * Replace executors used by tasks started from now on. Null restores library owned pool.
+	 *
+	 * @param network executor for tasks that download from remote server or copy content uris
+	 * @param disk    executor for cache hits and cache maintenance
+	 */
+	public static synchronized void setExecutors(Executor network, Executor disk) {
+		networkExecutor = network;
+		diskExecutor = disk;
+	}
+
+	static synchronized Executor getNetworkExecutor() {
+		if (networkExecutor == null)
+			networkExecutor = createPool("WebFileDownloader-net-", NETWORK_THREADS);
+		return networkExecutor;
+	}
+
+	static synchronized Executor getDiskExecutor() {
+		if (diskExecutor == null)
+			diskExecutor = createPool("WebFileDownloader-disk-", DISK_THREADS);
+		return diskExecutor;
+	}
+
+	/**
+	 * Runs hedged requests to mirrors. Kept apart from network pool, so waiting download never
+	 * blocks its own mirror requests.
+	 */
+	static synchronized Executor getConnectExecutor() {
+		if (connectExecutor == null)
+			connectExecutor = createPool("WebFileDownloader-connect-", CONNECT_THREADS);
+		return connectExecutor;
+	}
+
+	/**
+	 * Runs disk writers of write-behind transfers. Every writer lives as long as its transfer,
+	 * so pool is unbounded to never queue a writer behind another one.
+	 */
+	static synchronized Executor getWriterExecutor() {
+		if (writerExecutor == null)
+			writerExecutor = createPool("WebFileDownloader-write-", 0, Integer.MAX_VALUE,
+					new SynchronousQueue<Runnable>());
+		return writerExecutor;
+	}
+
+	/**
+	 * Runs aborts of cancelled transfers. Unbounded, so cancellation never waits for a thread
+	 * busy with copying.
+	 */
+	static synchronized Executor getAbortExecutor() {
+		if (abortExecutor == null)
+			abortExecutor = createPool("WebFileDownloader-abort-", 0, Integer.MAX_VALUE,
+					new SynchronousQueue<Runnable>());
+		return abortExecutor;
+	}
+
+	private static Executor createPool(String name, int threads) {
+		return createPool(name, threads, threads, new LinkedBlockingQueue<Runnable>());
+	}
+
+	private static Executor createPool(final String name, int coreThreads, int maxThreads,
+									   BlockingQueue<Runnable> queue) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(coreThreads, maxThreads,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				queue,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, name + count.incrementAndGet());
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+}
@@ -2,35 +2,33 @@ package paszkiewicz.webfiledownloader;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Caches images in the database.<br> Keeps reference to the latest accessed images, drops entries
- * for oldest images or missing files automatically.
+ * Caches images in the database.<br> Android side of {@link DiskCache}: rows are kept in SQLite,
+ * seeds are read from assets and memory tier follows removed files.
  */
-class ImageCacheManager extends SQLiteOpenHelper {
-	private final static int DB_VERSION = 2;
+class ImageCacheManager extends DiskCache {
+	private final static int DB_VERSION = 9;
 	private final static String DB_NAME = "ImageCache.db";
-	private final static String COMMAND_CREATE =
-			"CREATE TABLE " + CacheTable.TABLE_NAME + " ( " +
-					CacheTable.COLUMN_NAME_URL + " text primary key not null, " +
-					CacheTable.COLUMN_NAME_FILENAME + " text not null, " +
-					CacheTable.COLUMN_NAME_DATE + " integer not null, " +
-					CacheTable.COLUMN_NAME_SIZE + " integer, " +
-					CacheTable.COLUMN_NAME_ETAG + " text" + ")";
 
-	private final static String COMMAND_DELETE =
-			"DROP TABLE IF EXISTS " + CacheTable.TABLE_NAME;
-
-	private final int maxCacheSize;
-	private final File cacheDir;
+	/**
+	 * Shared by all instances, the index is loaded from database on first access
+	 */
+	private final static Shared shared = new Shared();
 
+	private final AssetManager assets;
 
 	/**
 	 * Create cache manager with fixed cache size
@@ -40,231 +38,354 @@ class ImageCacheManager extends SQLiteOpenHelper {
 	 * @throws CacheFailureException
 	 */
 	ImageCacheManager(Context context, int maxCacheSize) throws CacheFailureException {
-		super(context, makeDBPath(context), null, DB_VERSION);
-		this.cacheDir = Util.getOrCreateCacheDir(context);
-		this.maxCacheSize = maxCacheSize;
-	}
-
-	private static String makeDBPath(Context context) throws CacheFailureException {
-		File cacheFile = Util.getOrCreateCacheDir(context);
-		if (cacheFile == null)
-			throw new CacheFailureException();
-		return new File(cacheFile.getAbsolutePath(), DB_NAME).getAbsolutePath();
-	}
-
-	/**
-	 * Get cached file for specified url
-	 *
-	 * @param url url to look up
-	 * @return Cached file or null if missing
-	 */
-	synchronized CacheableFile getCachedUrlFile(String url) {
-		CacheableFile cachedFile;
-		SQLiteDatabase db = getWritableDatabase();
-		Cursor c = db.query(
-				CacheTable.TABLE_NAME,
-				CacheTable.PROJECTION,
-				whereUrl(url),
-				null, null, null, null);
-
-		if (c.moveToFirst()) {
-			File f = new File(cacheDir, c.getString(1));
-			updateURLDate(url, db);
-			cachedFile = new CacheableFile(c, f);
-		} else {
-			cachedFile = insertUrlToCache(url, db);
-		}
-		c.close();
-		db.close();
-		return cachedFile;
-	}
-
-	/**
-	 * Insert data of partially loaded file into database
-	 *
-	 * @param file CacheableFile with length and etag set
-	 */
-	synchronized void savePartialProgress(CacheableFile file) {
-		SQLiteDatabase db = getWritableDatabase();
-		ContentValues val = new ContentValues();
-		val.put(CacheTable.COLUMN_NAME_SIZE, file.length);
-		val.put(CacheTable.COLUMN_NAME_ETAG, file.eTag);
-		db.update(CacheTable.TABLE_NAME,
-				val,
-				whereUrl(file.url),
-				null);
-		db.close();
+		super(shared, new CacheTable(context, getCacheDir(context)), getCacheDir(context),
+				maxCacheSize, DownloadExecutors.getDiskExecutor());
+		this.assets = context.getAssets();
 	}
 
 	/**
-	 * Save new url in db
+	 * Replace policy used by all cache managers, existing entries are reordered
 	 *
-	 * @param url new url inserted into database
-	 * @return filename to create that will be referenced by this entry
+	 * @param policy new eviction policy
 	 */
-	private CacheableFile insertUrlToCache(String url, SQLiteDatabase db) {
-		CacheableFile retFile = null;
-		String time = String.valueOf(System.currentTimeMillis());
-		String filename = time + "." + Util.getExtension(url);
-		ContentValues val = new ContentValues();
-		val.put(CacheTable.COLUMN_NAME_URL, url);
-		val.put(CacheTable.COLUMN_NAME_FILENAME, filename);
-		val.put(CacheTable.COLUMN_NAME_DATE, time);
-
-		if (db.insert(CacheTable.TABLE_NAME, null, val) > 0) {
-			File f = new File(cacheDir, filename);
-			retFile = new CacheableFile(url, f);
-		}
-		flushOldEntries(db);
-		return retFile;
+	static void setEvictionPolicy(EvictionPolicy policy) {
+		shared.setEvictionPolicy(policy);
 	}
 
 	/**
-	 * Update date for entry that already existed
+	 * Replace normalizer used by all cache managers. Entries cached under urls normalized
+	 * differently are not found anymore and are evicted over time.
 	 *
-	 * @param url updated rows url
-	 * @param db  readable database
+	 * @param normalizer new url normalizer
 	 */
-	private void updateURLDate(String url, SQLiteDatabase db) {
-		ContentValues val = new ContentValues();
-		val.put(CacheTable.COLUMN_NAME_DATE, System.currentTimeMillis());
-		db.update(CacheTable.TABLE_NAME,
-				val,
-				whereUrl(url),
-				null);
+	static void setUrlNormalizer(UrlNormalizer normalizer) {
+		shared.setUrlNormalizer(normalizer);
 	}
 
 	/**
-	 * Flush all old entries from db and disk
-	 *
-	 * @param db writeable database
+	 * @param name url or derived key, see {@link CacheKeys#getDerivedKey(String, List)}
+	 * @return normalized url, followed by keys of transforms of derived key
 	 */
-	private void flushOldEntries(SQLiteDatabase db) {
-		Cursor c = db.query(
-				CacheTable.TABLE_NAME,
-				CacheTable.SHORT_PROJECTION,
-				null, null, null, null,
-				CacheTable.COLUMN_NAME_DATE + " DESC",
-				maxCacheSize + ",100");
-
-		while (c.moveToNext()) {
-			deleteEntry(c.getString(0), db);
-			deleteFile(c.getString(1));
-		}
-		c.close();
+	static String normalize(String name) {
+		return shared.normalize(name);
 	}
 
 	/**
-	 * Delete cached URLs file and from database
+	 * Get key of the row caching url
 	 *
-	 * @param url url of cached file
+	 * @param name url or derived key, see {@link CacheKeys#getDerivedKey(String, List)}
+	 * @return key of the row
 	 */
-	synchronized void invalidateCachedEntry(String url) {
-		SQLiteDatabase db = getWritableDatabase();
-		Cursor c = db.query(
-				CacheTable.TABLE_NAME,
-				CacheTable.SHORT_PROJECTION,
-				whereUrl(url),
-				null, null, null, null);
-		if (c.moveToNext()) {
-			deleteFile(c.getString(1));
-		}
-		invalidateRow(url, db);
-		c.close();
-		db.close();
+	static String getKey(String name) {
+		return shared.getKey(name);
 	}
 
 	/**
-	 * Invalidate cached Row
-	 *
-	 * @param url updated rows url
-	 * @param db  readable database
+	 * Look up file in memory only, see {@link Shared#peekLoadedFile(String)}. Safe to call on
+	 * the main thread.
 	 */
-	private void invalidateRow(String url, SQLiteDatabase db) {
-		ContentValues val = new ContentValues();
-		String time = String.valueOf(System.currentTimeMillis());
-		String filename = time + "." + Util.getExtension(url);
-		val.put(CacheTable.COLUMN_NAME_FILENAME, filename);
-		val.put(CacheTable.COLUMN_NAME_DATE, time);
-		val.putNull(CacheTable.COLUMN_NAME_SIZE);
-		val.putNull(CacheTable.COLUMN_NAME_ETAG);
-		db.update(CacheTable.TABLE_NAME,
-				val,
-				whereUrl(url),
-				null);
+	static File peekLoadedFile(String url) {
+		return shared.peekLoadedFile(url);
 	}
 
 	/**
-	 * Delete an entry from database
-	 *
-	 * @param urlEntry url for row
-	 * @param db       readable database
+	 * Check in memory only if url has complete file, see {@link Shared#isLoaded(String)}. Safe
+	 * to call on the main thread.
 	 */
-	private void deleteEntry(String urlEntry, SQLiteDatabase db) {
-		db.delete(CacheTable.TABLE_NAME,
-				whereUrl(urlEntry), null);
+	static boolean isLoaded(String url) {
+		return shared.isLoaded(url);
 	}
 
 	/**
-	 * Delete file
+	 * Read statistics in memory only, safe to call on the main thread
 	 *
-	 * @param filename name of file residing in apps cache
+	 * @return statistics or null if index was not loaded by any background task yet
 	 */
-	private void deleteFile(String filename) {
-		File f = new File(cacheDir, filename);
-		if (f.exists()) {
-			//noinspection ResultOfMethodCallIgnored
-			f.delete();
-		}
+	static CacheStats peekStats() {
+		return shared.peekStats();
 	}
 
-	/**
-	 * String for WHERE clause with escaped url
-	 *
-	 * @param url url filter, Do NOT use url fetched from db since it already is escaped and will
-	 *            fail
-	 * @return valid where clause
-	 */
-	private String whereUrl(String url) {
-		return CacheTable.COLUMN_NAME_URL + " = \"" + url + "\"";
+	private static File getCacheDir(Context context) throws CacheFailureException {
+		File cacheFile = Util.getOrCreateCacheDir(context);
+		if (cacheFile == null)
+			throw new CacheFailureException();
+		return cacheFile;
 	}
 
 	@Override
-	public void onCreate(SQLiteDatabase db) {
-		db.execSQL(COMMAND_CREATE);
+	protected void onRemoved(String key) {
+		MemoryCache.getInstance().remove(key);
 	}
 
 	@Override
-	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL(COMMAND_DELETE);
-		onCreate(db);
+	protected InputStream openSeed(String source) throws IOException {
+		if (source.startsWith(CacheSeed.SOURCE_ASSET))
+			return assets.open(source.substring(CacheSeed.SOURCE_ASSET.length()));
+		return super.openSeed(source);
 	}
 
 	@Override
-	public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		onUpgrade(db, oldVersion, newVersion);
+	protected boolean link(File source, File link) {
+		return Util.link(source, link);
 	}
 
-	static abstract class CacheTable implements BaseColumns {
+	/**
+	 * Rows of the cache directory in SQLite database stored next to the files
+	 */
+	private static class CacheTable extends SQLiteOpenHelper implements CacheDatabase,
+			BaseColumns {
 		private static final String TABLE_NAME = "CachedImages";
+		private static final String COLUMN_NAME_KEY = "urlhash";
 		private static final String COLUMN_NAME_URL = "url";
 		private static final String COLUMN_NAME_FILENAME = "filename";
 		private static final String COLUMN_NAME_DATE = "date";
 
 		private static final String COLUMN_NAME_SIZE = "filesize";
 		private static final String COLUMN_NAME_ETAG = "Etag";
+		private static final String COLUMN_NAME_HITS = "hits";
+		private static final String COLUMN_NAME_EXTERNAL = "external";
+		private static final String COLUMN_NAME_COMPLETE = "complete";
+		private static final String COLUMN_NAME_RANGES = "ranges";
+		private static final String COLUMN_NAME_SEED = "seed";
 
 		private final static String[] PROJECTION = {
 				COLUMN_NAME_URL,
 				COLUMN_NAME_FILENAME,
 				COLUMN_NAME_DATE,
 				COLUMN_NAME_SIZE,
-				COLUMN_NAME_ETAG};
+				COLUMN_NAME_ETAG,
+				COLUMN_NAME_HITS,
+				COLUMN_NAME_EXTERNAL,
+				COLUMN_NAME_COMPLETE,
+				COLUMN_NAME_RANGES,
+				COLUMN_NAME_SEED,
+				COLUMN_NAME_KEY};
 
-		private final static String[] SHORT_PROJECTION = {
-				COLUMN_NAME_URL,
-				COLUMN_NAME_FILENAME
-		};
+		private final static String COMMAND_CREATE =
+				"CREATE TABLE " + TABLE_NAME + " ( " +
+						COLUMN_NAME_KEY + " text primary key not null, " +
+						COLUMN_NAME_URL + " text not null, " +
+						COLUMN_NAME_FILENAME + " text not null, " +
+						COLUMN_NAME_DATE + " integer not null, " +
+						COLUMN_NAME_SIZE + " integer, " +
+						COLUMN_NAME_ETAG + " text, " +
+						COLUMN_NAME_HITS + " integer not null default 0, " +
+						COLUMN_NAME_EXTERNAL + " integer not null default 0, " +
+						COLUMN_NAME_COMPLETE + " integer not null default 0, " +
+						COLUMN_NAME_RANGES + " text, " +
+						COLUMN_NAME_SEED + " text" + ")";
+
+		private final static String COMMAND_TOUCH =
+				"UPDATE " + TABLE_NAME + " SET " +
+						COLUMN_NAME_DATE + " = ?, " +
+						COLUMN_NAME_HITS + " = " + COLUMN_NAME_HITS + " + 1" +
+						" WHERE " + COLUMN_NAME_KEY + " = ?";
+
+		private final static String COMMAND_SET_HITS =
+				"UPDATE " + TABLE_NAME + " SET " +
+						COLUMN_NAME_DATE + " = ?, " +
+						COLUMN_NAME_HITS + " = ?" +
+						" WHERE " + COLUMN_NAME_KEY + " = ?";
+
+		private final static String COMMAND_DELETE_ROW =
+				"DELETE FROM " + TABLE_NAME +
+						" WHERE " + COLUMN_NAME_KEY + " = ?";
+
+		private final static String COMMAND_DELETE =
+				"DROP TABLE IF EXISTS " + TABLE_NAME;
+
+		private final File cacheDir;
+
+		CacheTable(Context context, File cacheDir) {
+			super(context, new File(cacheDir.getAbsolutePath(), DB_NAME).getAbsolutePath(), null,
+					DB_VERSION);
+			this.cacheDir = cacheDir;
+		}
+
+		@Override
+		public List<CacheIndex.Entry> readAll() {
+			List<CacheIndex.Entry> entries = new ArrayList<>();
+			Cursor c = getWritableDatabase().query(
+					TABLE_NAME,
+					PROJECTION,
+					null, null, null, null,
+					COLUMN_NAME_DATE + " ASC");
+			try {
+				while (c.moveToNext()) {
+					CacheIndex.Entry e = new CacheIndex.Entry(c.getString(10), c.getString(0),
+							c.getString(1), c.getLong(2));
+					e.length = c.isNull(3) ? -1 : c.getLong(3);
+					e.eTag = c.getString(4);
+					e.hits = c.getLong(5);
+					e.external = c.getInt(6) != 0;
+					e.complete = c.getInt(7) != 0;
+					if (!c.isNull(8))
+						e.ranges = ByteRanges.parse(c.getString(8));
+					e.seed = c.getString(9);
+					entries.add(e);
+				}
+			} finally {
+				c.close();
+			}
+			return entries;
+		}
+
+		@Override
+		public boolean insert(CacheIndex.Entry entry) {
+			return getWritableDatabase().insert(TABLE_NAME, null, toValues(entry)) >= 0;
+		}
+
+		@Override
+		public List<CacheIndex.Entry> insertAll(List<CacheIndex.Entry> entries) {
+			List<CacheIndex.Entry> inserted = new ArrayList<>();
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for (CacheIndex.Entry e : entries) {
+					if (db.insert(TABLE_NAME, null, toValues(e)) >= 0)
+						inserted.add(e);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			return inserted;
+		}
+
+		@Override
+		public void update(CacheIndex.Entry entry) {
+			getWritableDatabase().update(TABLE_NAME,
+					toValues(entry),
+					whereKey(entry.key),
+					null);
+		}
+
+		@Override
+		public void touch(String key, long date) {
+			getWritableDatabase().execSQL(COMMAND_TOUCH, new Object[]{date, key});
+		}
+
+		@Override
+		public void touchAll(List<CacheIndex.Entry> entries) {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				SQLiteStatement update = db.compileStatement(COMMAND_SET_HITS);
+				for (CacheIndex.Entry e : entries) {
+					update.bindLong(1, e.date);
+					update.bindLong(2, e.hits);
+					update.bindString(3, e.key);
+					update.executeUpdateDelete();
+				}
+				update.close();
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		@Override
+		public void delete(String key) {
+			getWritableDatabase().delete(TABLE_NAME,
+					whereKey(key), null);
+		}
+
+		@Override
+		public void deleteAll(List<CacheIndex.Entry> entries) {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				SQLiteStatement delete = db.compileStatement(COMMAND_DELETE_ROW);
+				for (CacheIndex.Entry e : entries) {
+					delete.bindString(1, e.key);
+					delete.executeUpdateDelete();
+				}
+				delete.close();
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		/**
+		 * @return all columns of the row
+		 */
+		private static ContentValues toValues(CacheIndex.Entry e) {
+			ContentValues val = new ContentValues();
+			val.put(COLUMN_NAME_KEY, e.key);
+			val.put(COLUMN_NAME_URL, e.url);
+			val.put(COLUMN_NAME_FILENAME, e.filename);
+			val.put(COLUMN_NAME_DATE, e.date);
+			if (e.length >= 0)
+				val.put(COLUMN_NAME_SIZE, e.length);
+			else
+				val.putNull(COLUMN_NAME_SIZE);
+			val.put(COLUMN_NAME_ETAG, e.eTag);
+			val.put(COLUMN_NAME_HITS, e.hits);
+			val.put(COLUMN_NAME_EXTERNAL, e.external ? 1 : 0);
+			val.put(COLUMN_NAME_COMPLETE, e.complete ? 1 : 0);
+			val.put(COLUMN_NAME_RANGES, e.ranges != null ? e.ranges.toString() : null);
+			val.put(COLUMN_NAME_SEED, e.seed);
+			return val;
+		}
+
+		/**
+		 * String for WHERE clause selecting single row
+		 *
+		 * @param key key of the row, hex digits need no escaping
+		 * @return valid where clause
+		 */
+		private static String whereKey(String key) {
+			return COLUMN_NAME_KEY + " = '" + key + "'";
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL(COMMAND_CREATE);
+		}
+
+		/**
+		 * Rows are not migrated, files they referenced are deleted along with them
+		 */
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			final List<String> filenames = new ArrayList<>();
+			try {
+				Cursor c = db.query(TABLE_NAME,
+						new String[]{COLUMN_NAME_FILENAME},
+						null, null, null, null, null);
+				while (c.moveToNext()) {
+					filenames.add(c.getString(0));
+				}
+				c.close();
+			} catch (RuntimeException ignored) {
+				//table is missing or unreadable, nothing to clean up
+			}
+			db.execSQL(COMMAND_DELETE);
+			onCreate(db);
+			if (filenames.isEmpty())
+				return;
+			//new files get new names, don't hold up opening the database
+			DownloadExecutors.getDiskExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					for (String filename : filenames) {
+						if (filename == null)
+							continue;
+						File f = new File(cacheDir, filename);
+						//noinspection ResultOfMethodCallIgnored
+						f.delete();
+						//noinspection ResultOfMethodCallIgnored
+						CacheableFile.getPartFile(f).delete();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			onUpgrade(db, oldVersion, newVersion);
+		}
 	}
 
 	/**
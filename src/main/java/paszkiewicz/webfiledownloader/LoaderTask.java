@@ -12,29 +12,53 @@ import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Task performing background loading of a file
  */
 abstract class LoaderTask extends AsyncTaskLoader<CacheableFile> {
+	/**
+	 * Write-behind chunk size and amount of chunks read ahead, 1 MB in total
+	 */
+	private final static int WRITE_BEHIND_CHUNK_SIZE = 64 * 1024;
+	private final static int WRITE_BEHIND_RING_SIZE = 16;
+
 	protected final String url;
-	protected final int mobileWarning;
+	protected final long mobileWarning;
 	protected final int cacheSize;
 	protected final int timeout;
+	protected int readTimeout;
 
-	protected WebFileDownloader.Callback callback;
+	/**
+	 * Replaced when task is detached from its view model, read by download thread
+	 */
+	protected volatile WebFileDownloader.Callback callback;
+	protected final DownloadMetrics metrics;
+	private DownloadMetrics.Listener metricsListener;
 
 	protected long fileLength;
+	private long maxCacheBytes = 0;
+	private boolean isInvalidating = false;
+	protected final FileTransfer transfer = new FileTransfer();
+	/**
+	 * Download and cache flow of the task, its inputs are adapted by template methods below
+	 */
+	private final DownloadJob job;
 	private int errorCode = 0;
-	private boolean isFileDownloadCancelled = false;
+	private volatile boolean isFileDownloadCancelled = false;
 	private String errorMessage = null;
 
-	public LoaderTask(Context context, String url, int mobileWarning, int cacheSize, int timeout) {
+	public LoaderTask(Context context, String url, long mobileWarning, int cacheSize, int timeout) {
 		super(context);
 		this.url = url;
 		this.mobileWarning = mobileWarning;
 		this.cacheSize = cacheSize;
 		this.timeout = timeout;
+		this.readTimeout = timeout;
+		this.metrics = new DownloadMetrics(url);
+		this.job = new DownloadJob(url, new TaskSource(), transfer, metrics, new JobListener());
 		onContentChanged();
 	}
 
@@ -43,6 +67,86 @@ abstract class LoaderTask extends AsyncTaskLoader<CacheableFile> {
 		this.callback = callback;
 	}
 
+	/**
+	 * @param metricsListener receives metrics when this task ends, can be null
+	 */
+	public void setMetricsListener(DownloadMetrics.Listener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * @param readTimeout time (in milliseconds) without receiving any data after which transfer
+	 *                    fails, 0 to wait forever. Defaults to connection timeout.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @param retryPolicy policy deciding which failed transfers are continued, defaults to {@link
+	 *                    RetryPolicy#DEFAULT}
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		job.setRetryPolicy(retryPolicy);
+	}
+
+	/**
+	 * @param maxCacheBytes max total size of cached files in bytes, 0 for no limit besides free
+	 *                      space
+	 */
+	public void setMaxCacheBytes(long maxCacheBytes) {
+		this.maxCacheBytes = maxCacheBytes;
+	}
+
+	/**
+	 * @param writeBehind true to write downloaded bytes on separate thread, so slow storage
+	 *                    doesn't stall reading from the network until 1 MB is waiting
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		if (writeBehind)
+			transfer.setWriteBehind(DownloadExecutors.getWriterExecutor(),
+					WRITE_BEHIND_CHUNK_SIZE, WRITE_BEHIND_RING_SIZE);
+		else
+			transfer.setWriteBehind(null, 0, 0);
+	}
+
+	/**
+	 * @param destination target written instead of the cache file, null to download into cache
+	 */
+	public void setDestination(Destination destination) {
+		job.setDestination(destination);
+	}
+
+	Destination getDestination() {
+		return job.getDestination();
+	}
+
+	/**
+	 * Transforms are not applied to downloads into a {@link Destination}
+	 *
+	 * @param transforms stages applied in order to downloaded bytes, result is cached and
+	 *                   returned instead of original file
+	 */
+	public void setTransforms(List<Transform> transforms) {
+		job.setTransforms(transforms);
+	}
+
+	/**
+	 * @param isInvalidating true to drop cached file of the url and its derived variant before
+	 *                       looking it up, so the download starts over. Done on the download
+	 *                       thread, caller doesn't touch the database.
+	 */
+	public void setInvalidating(boolean isInvalidating) {
+		this.isInvalidating = isInvalidating;
+	}
+
+	/**
+	 * @return cache key of the result, see {@link CacheKeys#getDerivedKey(String, List)}
+	 */
+	String getResultKey() {
+		return job.getResultKey();
+	}
+
 	/**
 	 * Call to abandon current loading - don't save partial progress
 	 */
@@ -98,49 +202,75 @@ abstract class LoaderTask extends AsyncTaskLoader<CacheableFile> {
 		cancelLoad();
 	}
 
+	/**
+	 * Run on library owned pool instead of shared AsyncTask one. Files that are already cached
+	 * don't wait behind network transfers.
+	 */
+	@Override
+	protected Executor getExecutor() {
+		if (isDiskOnly())
+			return DownloadExecutors.getDiskExecutor();
+		return DownloadExecutors.getNetworkExecutor();
+	}
+
+	/**
+	 * Besides flagging the task, close its stream and connection so blocked read returns right
+	 * away instead of waiting for a timeout.
+	 */
+	@Override
+	public void cancelLoadInBackground() {
+		super.cancelLoadInBackground();
+		// closing sockets may touch the network, keep it off calling (main) thread
+		DownloadExecutors.getAbortExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				job.abort();
+			}
+		});
+	}
+
+	/**
+	 * @return true if this task is expected to serve complete cached copy, without downloading or
+	 * copying its source
+	 */
+	protected boolean isDiskOnly() {
+		if (isInvalidating)
+			return false; //cached copy is about to be dropped
+		//routing alone is not a hit, the load itself counts it
+		return ImageCacheManager.isLoaded(getResultKey());
+	}
+
 	@Override
 	public CacheableFile loadInBackground() {
-		//variables that get cleaned up in final block
-		CacheableFile imageFile = null;
-		InputStream input = null;
-		OutputStream output = null;
+		CacheableFile result = null;
+		try {
+			result = load();
+			return result;
+		} finally {
+			reportMetrics(result != null);
+		}
+	}
+
+	/**
+	 * @return loaded file or null if loading failed or was cancelled
+	 */
+	private CacheableFile load() {
 		ImageCacheManager cache = null;
 
+		metrics.markStarted();
 		try {
-			cache = new ImageCacheManager(getContext(), cacheSize);
-			//get cached image or image to save stream to, if it's loaded return it instead
-			imageFile = cache.getCachedUrlFile(url);
-			if (imageFile.isLoaded()) {
-				return imageFile;
-			}
-
-			// start downloading the file
-			input = openInputStream(imageFile);
-			if (input == null)
-				return null;
-
-			output = new FileOutputStream(imageFile.file, imageFile.partIsValid);
-
-			long downloadProgress = 0;
-			//restore previous download progress
-			if (imageFile.partIsValid)
-				downloadProgress = imageFile.file.length();
-
-			byte data[] = new byte[4096];
-			int count;
-			//loop read input stream
-			while ((count = input.read(data)) != -1) {
-				if (isStopped()) {
-					return null;
-				}
-
-				downloadProgress += count;
-				// publishing the progress....
-				if (fileLength > 0) // only if total length is known
-					updateProgress((int) downloadProgress, fileLength, true);
-				output.write(data, 0, count);
-			}
+			if (isInvalidating)
+				invalidateCache();
+			CacheableFile direct = openDirect();
+			if (direct != null)
+				return direct;
 
+			cache = new ImageCacheManager(getContext(), cacheSize);
+			cache.setMaxCacheBytes(maxCacheBytes);
+			CacheableFile result = job.run(cache);
+			if (job.isOutOfSpace())
+				errorCode = WebFileDownloader.ERROR_NO_SPACE;
+			return result;
 		} catch (ImageCacheManager.CacheFailureException cacheFail) {
 			errorCode = WebFileDownloader.ERROR_CREATING_CACHE;
 			return null;
@@ -162,28 +292,40 @@ abstract class LoaderTask extends AsyncTaskLoader<CacheableFile> {
 			errorMessage = Util.createMessageFromException(e);
 			return null;
 		} finally {
-			try {
-				if (output != null)
-					output.close();
-				if (input != null)
-					input.close();
-				if (cache != null) {
-					if (!isFileDownloadCancelled && imageFile != null && imageFile
-							.isPartiallyLoaded())
-						cache.savePartialProgress(imageFile);
-					cache.close();
-				}
-				if (isFileDownloadCancelled && imageFile != null) {
-					//delete both here and from cache manager
-					//since otherwise we miss some when mashing refresh button
-					//noinspection ResultOfMethodCallIgnored
-					imageFile.file.delete();
-				}
-			} catch (Exception ignored) {
-			}
+			if (cache != null)
+				cache.close();
 			doFinally();
 		}
-		return imageFile;
+	}
+
+	/**
+	 * Drop cached file of the url and of its derived variant. Files of the previous task are
+	 * renamed away, so its late writes can't reach the new download.
+	 *
+	 * @throws ImageCacheManager.CacheFailureException if cache can't be opened
+	 */
+	private void invalidateCache() throws ImageCacheManager.CacheFailureException {
+		ImageCacheManager cache = new ImageCacheManager(getContext(), cacheSize);
+		try {
+			job.invalidate(cache);
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Deliver metrics of finished task
+	 *
+	 * @param isCompleted false if task failed or was cancelled, its cache result isn't counted
+	 */
+	private void reportMetrics(boolean isCompleted) {
+		if (!isCompleted)
+			metrics.cacheResult = DownloadMetrics.CACHE_NONE;
+		metrics.markFinished();
+		metrics.errorCode = errorCode;
+		AggregateMetrics.record(metrics);
+		if (metricsListener != null)
+			metricsListener.onDownloadFinished(metrics);
 	}
 
 	/**
@@ -210,7 +352,8 @@ abstract class LoaderTask extends AsyncTaskLoader<CacheableFile> {
 	}
 
 	/**
-	 * Open input stream for the loader<br> Set {@link #fileLength} to show the loading bar<br>
+	 * Open input stream for the loader<br> Set length of the file to show the loading bar, and
+	 * {@link #fileLength} to report it<br>
 	 *
 	 * @param imageFile cached image, set {@link CacheableFile#partIsValid} = true to continue old
 	 *                  download
@@ -220,10 +363,141 @@ abstract class LoaderTask extends AsyncTaskLoader<CacheableFile> {
 	 */
 	abstract protected InputStream openInputStream(CacheableFile imageFile) throws Exception;
 
+	/**
+	 * Copy opened input into cached file. Override to use faster path for inputs that allow it.
+	 *
+	 * @param input    stream returned by {@link #openInputStream(CacheableFile)}
+	 * @param output   cached file or destination, positioned after restored progress
+	 * @param progress amount of bytes restored from partial download
+	 * @param listener listener of the job, receives progress and decides when to stop
+	 * @return true if input was copied to the end, false if task was stopped
+	 * @throws IOException if reading or writing fails
+	 */
+	protected boolean copy(InputStream input, OutputStream output, long progress,
+						   FileTransfer.Listener listener) throws IOException {
+		return transfer.copy(input, output, progress, listener);
+	}
+
+	/**
+	 * Check if complete cached file still matches its source. Override when source can be
+	 * validated cheaply, invalid file is downloaded again from scratch.
+	 *
+	 * @param imageFile complete file with length and etag read from cache
+	 * @return true if cached file can be returned
+	 * @throws Exception catch exceptions in main loop try block
+	 */
+	protected boolean isCacheValid(CacheableFile imageFile) throws Exception {
+		return true;
+	}
+
+	/**
+	 * Override to return file that can be read in place without touching the cache
+	 *
+	 * @return file with {@link CacheableFile#directHandle} set, or null to use the cache
+	 * @throws Exception catch exceptions in main loop try block
+	 */
+	protected CacheableFile openDirect() throws Exception {
+		return null;
+	}
+
+	/**
+	 * @return true if input is downloaded from network, its bytes and cache misses are counted
+	 * in network metrics
+	 */
+	protected boolean isNetworkLoad() {
+		return false;
+	}
+
+	/**
+	 * Result of cancelled load is never delivered, release its direct handle
+	 */
+	@Override
+	public void onCanceled(CacheableFile data) {
+		if (data != null)
+			data.closeDirectHandle();
+	}
+
+	/**
+	 * Called on any thread after task was cancelled, once its stream was closed. Override to also
+	 * release connection, must be safe to call before or while stream is opened.
+	 */
+	protected void abortTransfer() {
+	}
+
 	/**
 	 * Override this to perform cleanup in thread's finally block
 	 */
 	protected void doFinally() {
 	}
 
+	/**
+	 * Input of the job, opened by template methods of the task
+	 */
+	private class TaskSource extends ContentSource {
+		@Override
+		InputStream open(CacheableFile file) throws Exception {
+			return openInputStream(file);
+		}
+
+		@Override
+		boolean copy(FileTransfer transfer, InputStream input, OutputStream output, long progress,
+					 FileTransfer.Listener listener) throws IOException {
+			return LoaderTask.this.copy(input, output, progress, listener);
+		}
+
+		@Override
+		boolean isCacheValid(CacheableFile file) throws Exception {
+			return LoaderTask.this.isCacheValid(file);
+		}
+
+		@Override
+		boolean isNetwork() {
+			return isNetworkLoad();
+		}
+
+		@Override
+		void abort() {
+			abortTransfer();
+		}
+
+		@Override
+		void release() {
+			doFinally();
+		}
+	}
+
+	/**
+	 * Stops the job with the task and publishes its progress and results
+	 */
+	private class JobListener implements DownloadJob.Listener {
+		@Override
+		public boolean isStopped() {
+			return LoaderTask.this.isStopped();
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return isFileDownloadCancelled;
+		}
+
+		@Override
+		public void onProgress(long current, long length) {
+			updateProgress(current, length, true);
+		}
+
+		/**
+		 * Keep complete file in memory tier if it's small enough
+		 */
+		@Override
+		public void onLoaded(CacheableFile file) {
+			if (file.external)
+				return; //cache file is empty, content is only in destination
+			file.bytes = MemoryCache.getInstance().load(file.key, file.file);
+		}
+
+		@Override
+		public boolean preallocate(FileOutputStream output, long length) {
+			return Util.preallocate(output, length);
+		}
+	}
 }
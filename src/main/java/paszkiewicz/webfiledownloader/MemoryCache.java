@@ -0,0 +1,170 @@
+package paszkiewicz.webfiledownloader;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide in-memory tier above the disk cache, holding contents of small files.<br> Bounded
+ * by total size in bytes, least recently used files are dropped first. Disabled until {@link
+ * #setLimits(long, long)} is called, shrinks on its own when system asks to trim memory.
+ */
+public class MemoryCache implements ComponentCallbacks2 {
+	private static MemoryCache instance;
+
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxBytes = 0;
+	private long maxFileSize = 0;
+	private long size = 0;
+	private boolean isRegistered = false;
+
+	private MemoryCache() {
+	}
+
+	public static synchronized MemoryCache getInstance() {
+		if (instance == null)
+			instance = new MemoryCache();
+		return instance;
+	}
+
+	/**
+	 * Enable or resize memory tier
+	 *
+	 * @param maxBytes    total size of held files in bytes, 0 disables the tier
+	 * @param maxFileSize files larger than this (in bytes) are never held in memory
+	 */
+	public synchronized void setLimits(long maxBytes, long maxFileSize) {
+		this.maxBytes = maxBytes;
+		this.maxFileSize = maxFileSize;
+		trimToSize(maxBytes);
+	}
+
+	/**
+	 * @param url url of cached file, looked up as normalized by {@link UrlNormalizer}
+	 * @return read only contents of file or null if it's not held in memory
+	 */
+	public ByteBuffer get(String url) {
+		return getByKey(ImageCacheManager.getKey(url));
+	}
+
+	/**
+	 * @param key cache key of file
+	 * @return read only contents of file or null if it's not held in memory
+	 */
+	synchronized ByteBuffer getByKey(String key) {
+		byte[] data = entries.get(key);
+		if (data == null)
+			return null;
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return total size of held files in bytes
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Drop least recently used files until held files fit the size
+	 *
+	 * @param bytes size to shrink to
+	 */
+	public synchronized void trimToSize(long bytes) {
+		Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+		while (size > bytes && it.hasNext()) {
+			size -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drop held copy of file, called when it's invalidated or evicted from disk
+	 */
+	synchronized void remove(String key) {
+		byte[] old = entries.remove(key);
+		if (old != null)
+			size -= old.length;
+	}
+
+	/**
+	 * @param length length of a file
+	 * @return true if file of this length can be held in memory
+	 */
+	synchronized boolean accepts(long length) {
+		return maxBytes > 0 && length >= 0 && length <= maxFileSize && length <= maxBytes;
+	}
+
+	/**
+	 * Read complete cached file into memory if it's small enough. Must not be called on the main
+	 * thread.
+	 *
+	 * @param key  cache key of file
+	 * @param file complete file
+	 * @return contents of file, or null if it's too large or reading failed
+	 */
+	ByteBuffer load(String key, File file) {
+		ByteBuffer held = getByKey(key);
+		if (held != null)
+			return held;
+		long length = file.length();
+		if (!accepts(length))
+			return null;
+		byte[] data = new byte[(int) length];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		synchronized (this) {
+			remove(key);
+			entries.put(key, data);
+			size += data.length;
+			trimToSize(maxBytes);
+		}
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Start listening for memory pressure, only first call has an effect
+	 *
+	 * @param context any context, application context is registered
+	 */
+	synchronized void register(Context context) {
+		if (!isRegistered) {
+			context.getApplicationContext().registerComponentCallbacks(this);
+			isRegistered = true;
+		}
+	}
+
+	@Override
+	public synchronized void onTrimMemory(int level) {
+		if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+			trimToSize(0);
+		} else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+			trimToSize(size / 2);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		trimToSize(0);
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+}
@@ -0,0 +1,34 @@
+package paszkiewicz.webfiledownloader;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+
+/**
+ * File system calls of {@link Os}.<br> Kept apart from {@link Util}, so devices older than
+ * Lollipop never load a class referencing {@link ErrnoException}. Check SDK version before
+ * calling.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+abstract class PosixUtil {
+	/**
+	 * @param fd     opened file
+	 * @param length amount of bytes to reserve from the start of the file
+	 * @throws ErrnoException if file system doesn't support it or is full
+	 */
+	static void fallocate(FileDescriptor fd, long length) throws ErrnoException {
+		Os.posix_fallocate(fd, 0, length);
+	}
+
+	/**
+	 * @param source existing file
+	 * @param link   new name of the same file
+	 * @throws ErrnoException if link can't be created, eg. across volumes
+	 */
+	static void link(String source, String link) throws ErrnoException {
+		Os.link(source, link);
+	}
+}
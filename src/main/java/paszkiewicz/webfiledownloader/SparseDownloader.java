@@ -0,0 +1,267 @@
+package paszkiewicz.webfiledownloader;
+
+import android.content.Context;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+/**
+ * Reads parts of remote files with http Range requests, eg. central directory of a zip or a
+ * single entry of large archive.<br> Fetched bytes are kept in a sparse file in the download
+ * cache and ranges already stored are tracked per entry, so later reads request only the
+ * missing gaps. Once the whole file is downloaded by {@link WebFileViewModel} reads are served
+ * from it. If server reports a different version of the file all stored ranges are dropped.
+ * Servers sending neither ETag nor Last-Modified keep only the range fetched last.
+ */
+public final class SparseDownloader {
+	private final Context appContext;
+	private final int cacheSize;
+	private final int timeout;
+	private int readTimeout;
+	private long maxCacheBytes = 0;
+
+	/**
+	 * @param context   any context, only application context is kept
+	 * @param cacheSize size of cache (amount of files to hold)
+	 * @param timeout   time (in milliseconds) to kill connection
+	 */
+	public SparseDownloader(Context context, int cacheSize, int timeout) {
+		this.appContext = context.getApplicationContext();
+		this.cacheSize = cacheSize;
+		this.timeout = timeout;
+		this.readTimeout = timeout;
+	}
+
+	/**
+	 * @param readTimeout time (in milliseconds) without receiving data after which read fails, 0
+	 *                    to wait forever. Defaults to connection timeout.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @param maxCacheBytes max total size of cached files in bytes, 0 for no limit besides free
+	 *                      space
+	 */
+	public void setMaxCacheBytes(long maxCacheBytes) {
+		this.maxCacheBytes = maxCacheBytes;
+	}
+
+	/**
+	 * Read part of the file, fetching only bytes that are not cached yet
+	 *
+	 * @param url    url of remote file
+	 * @param offset first byte to read
+	 * @param length amount of bytes to read
+	 * @return requested bytes, shorter if file ends before the range does
+	 * @throws IOException if server doesn't return the range or cache can't be written
+	 */
+	@WorkerThread
+	public synchronized byte[] read(String url, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0)
+			throw new IllegalArgumentException("invalid range " + offset + "+" + length);
+		CacheableFile file = fetch(url, offset, offset + length);
+		long end = offset + length;
+		if (file.length >= 0)
+			end = Math.min(end, file.length);
+		if (end <= offset)
+			return new byte[0];
+		byte[] data = new byte[(int) (end - offset)];
+		RandomAccessFile raf = new RandomAccessFile(file.file, "r");
+		try {
+			raf.seek(offset);
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Read end of the file, eg. zip end of central directory record
+	 *
+	 * @param url    url of remote file
+	 * @param length amount of bytes to read
+	 * @return last bytes of the file, whole file if it's shorter
+	 * @throws IOException if length can't be determined or range can't be read
+	 */
+	@WorkerThread
+	public synchronized byte[] readTail(String url, int length) throws IOException {
+		long fileLength = getLength(url);
+		if (fileLength < 0)
+			throw new IOException("server didn't report length of " + url);
+		return read(url, Math.max(0, fileLength - length), length);
+	}
+
+	/**
+	 * Get length of remote file, requesting its first byte if length is not cached
+	 *
+	 * @param url url of remote file
+	 * @return length in bytes or -1 if server didn't report it
+	 * @throws IOException if request fails
+	 */
+	@WorkerThread
+	public synchronized long getLength(String url) throws IOException {
+		CacheableFile file = fetch(url, 0, 0);
+		if (file.length < 0)
+			file = fetch(url, 0, 1);
+		return file.length;
+	}
+
+	/**
+	 * Make sure range is stored in the cache
+	 *
+	 * @return cached file covering the range
+	 */
+	private CacheableFile fetch(String url, long start, long end) throws IOException {
+		ImageCacheManager cache = new ImageCacheManager(appContext, cacheSize);
+		try {
+			cache.setMaxCacheBytes(maxCacheBytes);
+			CacheableFile file = cache.getCachedUrlFile(url);
+			if (file == null)
+				throw new ImageCacheManager.CacheFailureException();
+			if (file.seed != null && !file.complete)
+				cache.materializeSeed(file);
+			if (file.isCached() || start >= end)
+				return file;
+			if (file.complete)
+				cache.markIncomplete(file); //content is only in a destination
+			if (file.ranges == null)
+				file.ranges = new ByteRanges();
+			//if stored ranges belonged to other version of the file only the gap fetched from the
+			//new one is kept, rest of the range is fetched again. Another change, or a server
+			//without validators, gets the whole range read from one response.
+			List<long[]> gaps = file.ranges.getGaps(start, end);
+			boolean isChanged = false;
+			for (int i = 0; i < gaps.size(); i++) {
+				if (fetchGap(cache, file, gaps.get(i)[0], gaps.get(i)[1]))
+					continue;
+				if (isChanged || file.eTag == null) {
+					fetchGap(cache, file, start, end);
+					break;
+				}
+				isChanged = true;
+				gaps = file.ranges.getGaps(start, end);
+				i = -1;
+			}
+			return file;
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Request single missing range and write it into sparse file
+	 *
+	 * @return false if server sent different version of the file and other stored ranges were
+	 * dropped
+	 */
+	private boolean fetchGap(ImageCacheManager cache, CacheableFile file, long start, long end)
+			throws IOException {
+		if (file.length >= 0)
+			end = Math.min(end, file.length);
+		if (start >= end)
+			return true;
+		long needed = end - start;
+		if (!cache.makeRoom(file, file.ranges.getCoveredBytes() + needed, needed))
+			throw new IOException("not enough space to cache " + needed + " bytes");
+
+		HttpSource source = new HttpSource(file.url, timeout, readTimeout);
+		try {
+			source.connect(start, end);
+			int code = source.getResponseCode();
+			if (code == ResumeValidator.HTTP_RANGE_NOT_SATISFIABLE) {
+				//range starts past the end, only the length is learned
+				file.length = source.getTotalLength();
+				if (file.length < 0)
+					throw new IOException(code + " - " + source.getResponseMessage());
+				save(cache, file);
+				return true;
+			}
+			if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL)
+				throw new IOException(code + " - " + source.getResponseMessage());
+
+			String validator = source.getValidator();
+			boolean isSameVersion = file.ranges.isEmpty()
+					|| ResumeValidator.canResume(file.eTag, validator);
+			RandomAccessFile raf = cache.openSparse(file);
+			if (raf == null)
+				throw new IOException("entry was completed or invalidated while reading "
+						+ file.url);
+			try {
+				file.eTag = validator;
+				if (!isSameVersion) {
+					//old ranges are dropped before writing, they never describe the new bytes
+					raf.setLength(0);
+					file.ranges = new ByteRanges();
+					save(cache, file);
+				}
+				if (source.getTotalLength() >= 0)
+					file.length = source.getTotalLength();
+				InputStream input = source.getInputStream();
+				try {
+					//server ignoring the range sends the file from its start
+					if (code == HttpURLConnection.HTTP_OK)
+						FileTransfer.skipFully(input, start);
+					long written = copy(input, raf, start, end);
+					raf.getFD().sync();
+					file.ranges.add(start, start + written);
+					if (start + written < end) {
+						if (code != HttpURLConnection.HTTP_OK)
+							throw new IOException("range ended after " + written + " bytes");
+						file.length = start + written; //whole file was sent, it ends here
+					}
+				} finally {
+					input.close();
+				}
+			} catch (IOException | RuntimeException e) {
+				//keep what was stored before the failure, without hiding it
+				try {
+					cache.saveRanges(file);
+				} catch (Exception ignored) {
+				}
+				throw e;
+			} finally {
+				raf.close();
+			}
+			save(cache, file);
+			return isSameVersion;
+		} finally {
+			source.disconnect();
+		}
+	}
+
+	/**
+	 * Write input into file between start and end
+	 *
+	 * @return amount of bytes written, less than requested if input ended
+	 */
+	private static long copy(InputStream input, RandomAccessFile output, long start, long end)
+			throws IOException {
+		byte[] data = new byte[FileTransfer.DEFAULT_BUFFER_SIZE];
+		output.seek(start);
+		long written = 0;
+		long left = end - start;
+		int count;
+		while (left > 0 && (count = input.read(data, 0, (int) Math.min(data.length, left))) != -1) {
+			output.write(data, 0, count);
+			written += count;
+			left -= count;
+		}
+		return written;
+	}
+
+	/**
+	 * Record ranges. File of entry that was invalidated meanwhile is deleted by whoever removed
+	 * the entry, file of completed entry is the downloaded one and is kept.
+	 */
+	private static void save(ImageCacheManager cache, CacheableFile file) throws IOException {
+		if (!cache.saveRanges(file))
+			throw new IOException("entry was completed or invalidated while reading " + file.url);
+	}
+}
@@ -1,8 +1,10 @@
 package paszkiewicz.webfiledownloader;
 
 import android.content.Context;
+import android.os.Build;
 
 import java.io.File;
+import java.io.FileOutputStream;
 
 /**
  * Static methods
@@ -58,17 +60,40 @@ abstract class Util {
 	}
 
 	/**
-	 * Rip extension from string
+	 * Reserve disk blocks for file of known length so it's written contiguously and can't run
+	 * out of space midway. Does nothing on devices or file systems that don't support it.
 	 *
-	 * @param path string with extension
-	 * @return lowercased extension (without dot) or null if string has no dot to start reading
-	 * from
+	 * @param output opened file, its length becomes at least length
+	 * @param length final length of file
+	 * @return true if space was reserved
 	 */
-	public static String getExtension(String path) {
-		if (path.lastIndexOf('.') == -1)
-			return null;
-		String ext = path.substring(path.lastIndexOf('.') + 1);
-		ext = ext.replace("jpg", "jpeg").toLowerCase();
-		return ext;
+	public static boolean preallocate(FileOutputStream output, long length) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || length <= 0)
+			return false;
+		try {
+			PosixUtil.fallocate(output.getFD(), length);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Make file available under second name without copying it
+	 *
+	 * @param source existing file
+	 * @param link   new name, must not exist
+	 * @return true if link was created, false if device or file system doesn't support it or
+	 * both names are on different volumes
+	 */
+	public static boolean link(File source, File link) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+			return false;
+		try {
+			PosixUtil.link(source.getAbsolutePath(), link.getAbsolutePath());
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
 	}
 }
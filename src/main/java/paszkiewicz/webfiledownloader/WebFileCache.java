@@ -0,0 +1,131 @@
+package paszkiewicz.webfiledownloader;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Maintenance of the download cache shared by all {@link WebFileViewModel}s.
+ */
+public final class WebFileCache {
+	private WebFileCache() {
+	}
+
+	/**
+	 * Remove cached files of all given urls, along with urls normalized the same way, see {@link
+	 * #invalidate(Context, CacheFilter)}
+	 *
+	 * @return amount of removed entries
+	 * @throws IOException if cache can't be opened
+	 */
+	@WorkerThread
+	public static int invalidate(Context context, @NonNull Collection<String> urls)
+			throws IOException {
+		final Set<String> set = new HashSet<>();
+		for (String url : urls) {
+			set.add(ImageCacheManager.normalize(url));
+		}
+		return invalidate(context, new CacheFilter() {
+			@Override
+			public boolean accept(String url) {
+				return set.contains(url);
+			}
+		});
+	}
+
+	/**
+	 * Remove cached files of all urls starting with prefix, see {@link #invalidate(Context,
+	 * CacheFilter)}. Prefix is normalized like urls are, so it should end with a full path
+	 * segment.
+	 *
+	 * @return amount of removed entries
+	 * @throws IOException if cache can't be opened
+	 */
+	@WorkerThread
+	public static int invalidatePrefix(Context context, @NonNull String prefix)
+			throws IOException {
+		final String normalized = ImageCacheManager.normalize(prefix);
+		return invalidate(context, new CacheFilter() {
+			@Override
+			public boolean accept(String url) {
+				return url.startsWith(normalized);
+			}
+		});
+	}
+
+	/**
+	 * Remove cached files of all urls accepted by filter, including their variants made by {@link
+	 * Transform}s. All entries are removed in a single database transaction, files are deleted in
+	 * background afterwards. Downloads already running are not stopped and don't fail, their files
+	 * are kept until they end. Download that completes caches its file again as a fresh entry, so
+	 * content it fetched before the invalidation may be served until the url is invalidated again.
+	 *
+	 * @param filter called for every cached url while cache is locked, must return quickly
+	 * @return amount of removed entries
+	 * @throws IOException if cache can't be opened
+	 */
+	@WorkerThread
+	public static int invalidate(Context context, @NonNull CacheFilter filter)
+			throws IOException {
+		ImageCacheManager cache = new ImageCacheManager(context.getApplicationContext(), 0);
+		try {
+			return cache.invalidateCachedEntries(filter);
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Register prebuilt copies of remote files, eg. assets shipped in the apk, so they're not
+	 * downloaded on first use. All files are registered in a single database transaction, assets
+	 * are copied into the cache only when their url is first loaded. Urls that are already cached
+	 * are skipped. Stored ETags let later downloads validate against the server as usual.
+	 *
+	 * @param seeds files to register
+	 * @return amount of registered files
+	 * @throws IOException if cache can't be opened
+	 */
+	@WorkerThread
+	public static int preseed(Context context, @NonNull Collection<CacheSeed> seeds)
+			throws IOException {
+		ImageCacheManager cache = new ImageCacheManager(context.getApplicationContext(), 0);
+		try {
+			return cache.importSeeds(seeds);
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Read cache statistics. Only the first call in a process reads the database, later calls
+	 * return counters kept up to date in memory.
+	 *
+	 * @return current statistics
+	 * @throws IOException if cache can't be opened
+	 */
+	@WorkerThread
+	public static CacheStats getStats(Context context) throws IOException {
+		ImageCacheManager cache = new ImageCacheManager(context.getApplicationContext(), 0);
+		try {
+			return cache.getStats();
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Read cache statistics without touching the database, safe to call on the main thread
+	 *
+	 * @return current statistics, or null if cache was not opened by this process yet
+	 */
+	@Nullable
+	public static CacheStats peekStats() {
+		return ImageCacheManager.peekStats();
+	}
+}
@@ -1,8 +1,11 @@
 package paszkiewicz.webfiledownloader;
 
 import android.app.Activity;
+import android.content.Context;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
@@ -23,6 +26,7 @@ public class WebFileDownloader implements LoaderManager.LoaderCallbacks<Cacheabl
 	final static int ERROR_SOCKET = R.string.webfiledownloader_error_socket;
 	final static int ERROR_UNVERIFIED = R.string.webfiledownloader_error_unverified;
 	final static int ERROR_OTHER = R.string.webfiledownloader_error_other;
+	final static int ERROR_NO_SPACE = R.string.webfiledownloader_error_noSpace;
 
 	/**
 	 * Use this as onDownloadError code to call {@link Callback#onDownloadWarning(int, String,
@@ -31,7 +35,7 @@ public class WebFileDownloader implements LoaderManager.LoaderCallbacks<Cacheabl
 	final static int ERROR_WARNING_SIZE = R.string.webfiledownloader_warning_too_large;
 
 	private final String url;
-	private final int sizeWarning;
+	private final long sizeWarning;
 	private final int cacheSize;
 	private final int timeout;
 	private final boolean isContent;
@@ -53,7 +57,7 @@ public class WebFileDownloader implements LoaderManager.LoaderCallbacks<Cacheabl
 	 * @param timeout   time (in milliseconds) to kill connection
 	 * @param loaderId
 	 */
-	public WebFileDownloader(FragmentActivity activity, Uri url, int sizeWarning, int cacheSize,
+	public WebFileDownloader(FragmentActivity activity, Uri url, long sizeWarning, int cacheSize,
 							 int timeout, int loaderId) {
 		this.activity = activity;
 		try {
@@ -82,21 +86,33 @@ public class WebFileDownloader implements LoaderManager.LoaderCallbacks<Cacheabl
 	}
 
 	/**
-	 * Destroy any partial progress
+	 * Destroy any partial progress. Cached file is deleted in background.
 	 */
 	public void destroy() {
 		task.cancelFileDownload();
 		task.cancelLoadInBackground();
 
-		//now delete that from cache
-		try {
-			ImageCacheManager cache = new ImageCacheManager(activity, cacheSize);
-			cache.invalidateCachedEntry(url);
-			cache.close();
-		} catch (ImageCacheManager.CacheFailureException e) {
-			error(ERROR_CREATING_CACHE);
-			return;
-		}
+		//now delete that from cache, off the main thread
+		final Context appContext = activity.getApplicationContext();
+		final Handler handler = new Handler(Looper.getMainLooper());
+		DownloadExecutors.getDiskExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ImageCacheManager cache = new ImageCacheManager(appContext, cacheSize);
+					cache.invalidateCachedEntry(url);
+					cache.close();
+				} catch (ImageCacheManager.CacheFailureException e) {
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (!callback.isFinished())
+								error(ERROR_CREATING_CACHE);
+						}
+					});
+				}
+			}
+		});
 
 		activity.getLoaderManager().destroyLoader(loaderId);
 	}
@@ -113,7 +129,7 @@ public class WebFileDownloader implements LoaderManager.LoaderCallbacks<Cacheabl
 
 	@Override
 	public Loader<CacheableFile> onCreateLoader(int id, Bundle args) {
-		int mobileWarning = acceptedMobileWarning ? -1 : sizeWarning;
+		long mobileWarning = acceptedMobileWarning ? -1 : sizeWarning;
 		if (isContent)
 			return new ContentLoaderTask(activity, url, mobileWarning, cacheSize, timeout);
 		return new WebLoaderTask(activity, url, mobileWarning, cacheSize, timeout);
@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.arch.lifecycle.MutableLiveData;
 import android.arch.lifecycle.ViewModel;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
@@ -12,6 +13,11 @@ import android.support.v4.content.Loader;
 import android.util.Log;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static paszkiewicz.webfiledownloader.WebFileDownloader.ERROR_HTTP_RESPONSE;
 import static paszkiewicz.webfiledownloader.WebFileDownloader.ERROR_WARNING_SIZE;
@@ -25,11 +31,20 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
     private boolean isFinishing = false;
     private int cacheSize;
     private int timeout;
+    private int readTimeout;
 
     private final LegacyCallback legacyCallback = new LegacyCallback();
     private MutableLiveData<Progress> progressMutableLiveData = new MutableLiveData<>();
     private LoaderTask loaderTask;
     private int currentLoaderId = 0;
+    private DownloadMetrics.Listener metricsListener;
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private boolean directContentAccess = false;
+    private long maxCacheBytes = 0;
+    private long hedgeDelay = WebLoaderTask.DEFAULT_HEDGE_DELAY;
+    private List<Transform> transforms = Collections.emptyList();
+    private boolean detachOnClear = true;
+    private boolean writeBehind = false;
 
     /**
      * Context we're using - always app context so it doesn't actually leak.
@@ -40,13 +55,114 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
 
     public void initialize(int cacheSize,
                            int timeout) {
+        initialize(cacheSize, timeout, timeout);
+    }
+
+    /**
+     * @param readTimeout time (in milliseconds) without receiving data after which download fails, 0 to wait forever
+     */
+    public void initialize(int cacheSize,
+                           int timeout,
+                           int readTimeout) {
         if (!isInitialized) {
             this.cacheSize = cacheSize;
             this.timeout = timeout;
+            this.readTimeout = readTimeout;
         }
         isInitialized = true;
     }
 
+    /**
+     * Set listener receiving {@link DownloadMetrics} of every download started by this view model.
+     * Process wide totals are available in {@link AggregateMetrics}.
+     *
+     * @param metricsListener listener called on download thread, or null to remove it
+     */
+    public void setMetricsListener(@Nullable DownloadMetrics.Listener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Set policy used to continue downloads after transient failures, defaults to {@link RetryPolicy#DEFAULT}.
+     * Use {@link RetryPolicy#NONE} to fail on first error.
+     */
+    public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * If enabled content uris backed by local files are not copied into cache. Result is delivered as
+     * {@link Progress#getDirectHandle()} instead of {@link Progress#getResult()}, other content is still cached.
+     */
+    public void setDirectContentAccess(boolean directContentAccess) {
+        this.directContentAccess = directContentAccess;
+    }
+
+    /**
+     * Limit total size of cached files. Downloads that don't fit evict least recently used files first,
+     * or fail right away if they can't fit at all.
+     *
+     * @param maxCacheBytes limit in bytes, 0 to only keep free space on the storage
+     */
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * Set time without response from a source after which its next mirror is requested as well, see
+     * {@link #downloadUrl(Context, List, long)}. Defaults to one second.
+     *
+     * @param hedgeDelay delay in milliseconds
+     */
+    public void setHedgeDelay(long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Process downloaded files while they are written into cache, see {@link Transform}. Processed variant is cached
+     * under key derived from url and transform keys and delivered as {@link Progress#getResult()}, so later hits skip
+     * both download and processing. Not applied to downloads into a {@link Destination}.
+     *
+     * @param transforms stages applied in order, none to deliver original files
+     */
+    public void setTransforms(@NonNull Transform... transforms) {
+        this.transforms = Arrays.asList(transforms.clone());
+    }
+
+    /**
+     * If enabled (default) download still running when this view model is cleared is handed over to
+     * {@link DownloadEngine} instead of being cancelled. View model created later picks it up by url, either in
+     * {@link #reattach(Context, Uri)} or when the same download is started again.
+     */
+    public void setDetachOnClear(boolean detachOnClear) {
+        this.detachOnClear = detachOnClear;
+    }
+
+    /**
+     * If enabled downloaded bytes are written to storage by a separate thread while the next ones are received, up
+     * to 1 MB ahead. Keeps network throughput steady on devices with slow or stalling storage. Disabled by default.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Replace policy choosing which cached files are evicted first, shared by the whole process.
+     * Default is {@link EvictionPolicy.Lru}.
+     */
+    public static void setEvictionPolicy(@NonNull EvictionPolicy policy) {
+        ImageCacheManager.setEvictionPolicy(policy);
+    }
+
+    /**
+     * Replace normalizer mapping urls to the form they're cached under, shared by the whole process. Set it before
+     * the first download, files cached under urls normalized differently are not found afterwards. Default is
+     * {@link UrlNormalizer.Default} stripping no parameters and keeping https apart from http.
+     */
+    public static void setUrlNormalizer(@NonNull UrlNormalizer normalizer) {
+        ImageCacheManager.setUrlNormalizer(normalizer);
+    }
+
     /**
      * Get mutable live data for observing download progress and result.
      */
@@ -62,17 +178,142 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
      * @return true if download started, false if it's already up
      */
     @MainThread
-    public boolean downloadUrl(Context context, Uri url, int fileSizeLimit) {
-        return downloadUrl(context, url, fileSizeLimit, false);
+    public boolean downloadUrl(Context context, Uri url, long fileSizeLimit) {
+        return downloadUrl(context, url, Collections.<Uri>emptyList(), null, fileSizeLimit, false);
+    }
+
+    /**
+     * Like {@link #downloadUrl(Context, Uri, long)} but file is written straight to caller's destination
+     * instead of a file in the cache directory. Completion is reported by {@link Progress#isWrittenToDestination()},
+     * {@link Progress#getResult()} is set only for file destinations.
+     *
+     * @param destination   target of the download, continued if it holds partial download of this url
+     * @param fileSizeLimit max file size (in bytes) to download - will cancel download if it's larger. If -1 there is no limit.
+     * @return true if download started, false if it's already up
+     */
+    @MainThread
+    public boolean downloadUrl(Context context, Uri url, @NonNull Destination destination, long fileSizeLimit) {
+        return downloadUrl(context, url, Collections.<Uri>emptyList(), destination, fileSizeLimit, false);
+    }
+
+    /**
+     * Like {@link #downloadUrl(Context, Uri, long)} but file can be downloaded from any of equivalent urls.
+     * First url is requested first and is the cache key. If it doesn't respond within hedge delay
+     * (see {@link #setHedgeDelay(long)}) or fails, next mirror is requested too and the first one to respond
+     * is used, others are cancelled. Partial download continues from any mirror with matching validator.
+     *
+     * @param urls          primary url followed by its mirrors, must not be empty
+     * @param fileSizeLimit max file size (in bytes) to download - will cancel download if it's larger. If -1 there is no limit.
+     * @return true if download started, false if it's already up
+     */
+    @MainThread
+    public boolean downloadUrl(Context context, List<Uri> urls, long fileSizeLimit) {
+        return downloadUrl(context, urls.get(0), urls.subList(1, urls.size()), null, fileSizeLimit, false);
+    }
+
+    /**
+     * Return file immediately if it's fully cached, otherwise start download like
+     * {@link #downloadUrl(Context, Uri, long)}. Cache is checked in memory only so this never
+     * blocks on disk; on hit result is set on {@link #getDownload()} synchronously. Cached copies of
+     * content uris are never returned here, provider must confirm they're current in background.
+     *
+     * @param fileSizeLimit max file size (in bytes) to download if file is not cached. If -1 there is no limit.
+     * @return cached file, or null if it's missing and download started instead
+     */
+    @MainThread
+    @Nullable
+    public File peek(Context context, Uri url, long fileSizeLimit) {
+        if (!isInitialized)
+            throw new IllegalStateException("call initialize first!");
+        Progress p = progressMutableLiveData.getValue();
+        if (p != null && p.isValid()) {
+            return p.result; // download already up
+        }
+        String key = CacheKeys.getDerivedKey(url.toString(), transforms);
+        File cached = isPeekable(url) ? ImageCacheManager.peekLoadedFile(key) : null;
+        if (cached == null) {
+            downloadUrl(context, url, fileSizeLimit);
+            return null;
+        }
+        appContext = context.getApplicationContext();
+        p = new Progress(url, fileSizeLimit);
+        p.result = cached;
+        p.bytes = MemoryCache.getInstance().get(key);
+        p.isDeterminate = true;
+        progressMutableLiveData.setValue(p);
+        return cached;
+    }
+
+    /**
+     * @return true if complete cached copy of url can be served without validating it, false for
+     * content uris whose provider may have changed the content since it was copied
+     */
+    private static boolean isPeekable(Uri url) {
+        return !"content".equals(url.getScheme());
+    }
+
+    /**
+     * Like {@link #peek(Context, Uri, long)} but returns contents of small files held in {@link MemoryCache}.
+     * On miss file is loaded from disk cache or downloaded in background, and its contents are delivered
+     * through {@link Progress#getBytes()} if it fits the memory tier.
+     *
+     * @param fileSizeLimit max file size (in bytes) to download if file is not cached. If -1 there is no limit.
+     * @return read only contents of the file, or null if it's not held in memory
+     */
+    @MainThread
+    @Nullable
+    public ByteBuffer peekBytes(Context context, Uri url, long fileSizeLimit) {
+        if (!isInitialized)
+            throw new IllegalStateException("call initialize first!");
+        Progress p = progressMutableLiveData.getValue();
+        if (p != null && p.isValid()) {
+            return p.bytes; // download already up
+        }
+        String key = CacheKeys.getDerivedKey(url.toString(), transforms);
+        ByteBuffer bytes = MemoryCache.getInstance().get(key);
+        File cached = bytes != null && isPeekable(url) ? ImageCacheManager.peekLoadedFile(key) : null;
+        if (cached == null) {
+            downloadUrl(context, url, fileSizeLimit);
+            return null;
+        }
+        appContext = context.getApplicationContext();
+        p = new Progress(url, fileSizeLimit);
+        p.result = cached;
+        p.bytes = bytes;
+        p.isDeterminate = true;
+        progressMutableLiveData.setValue(p);
+        return bytes;
+    }
+
+    /**
+     * Pick up download of url detached from cleared view model, see {@link #setDetachOnClear(boolean)}. Its current
+     * progress is set on {@link #getDownload()} synchronously, result is delivered as usual.
+     *
+     * @return true if detached download was found, false if there's none or this view model already has a download
+     */
+    @MainThread
+    public boolean reattach(Context context, Uri url) {
+        if (!isInitialized)
+            throw new IllegalStateException("call initialize first!");
+        Progress p = progressMutableLiveData.getValue();
+        if (p != null && p.isValid()) {
+            return false; // download already up
+        }
+        DownloadEngine.Detached detached = DownloadEngine.getInstance().reattach(url.toString());
+        if (detached == null)
+            return false;
+        attach(context, url, detached);
+        return true;
     }
 
     /**
-     * Refresh current download using new fileSizeLimit.
+     * Refresh current download using new fileSizeLimit. Cached file is dropped by the new download task in
+     * background, nothing is read or deleted on calling thread.
      *
      * @return true if refresh is happening, false if there's no ongoing task
      */
     @MainThread
-    public boolean refreshDownload(int fileSizeLimit) {
+    public boolean refreshDownload(long fileSizeLimit) {
         Progress p = progressMutableLiveData.getValue();
         if (p == null) {
             return false; // download not up
@@ -83,52 +324,121 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
             //abandon callbacks
             loaderTask.unregisterListener(this);
         }
-        //now delete from cache
-        try {
-            ImageCacheManager cache = new ImageCacheManager(appContext, cacheSize);
-            cache.invalidateCachedEntry(p.url.toString());
-            cache.close();
-        } catch (ImageCacheManager.CacheFailureException e) {
-            // silent erorr?
-            Log.e(TAG, "Error creating cache!");
-            e.printStackTrace();
-        }
-        return downloadUrl(appContext, p.url, fileSizeLimit, true);
+        return downloadUrl(appContext, p.url, p.mirrors, p.destination, fileSizeLimit, true);
     }
 
     // internal download
-    private boolean downloadUrl(Context context, Uri url, int fileSizeLimit, boolean forceCreate) {
+    private boolean downloadUrl(Context context, Uri url, List<Uri> mirrors, Destination destination,
+                                long fileSizeLimit, boolean forceCreate) {
         if (!isInitialized)
             throw new IllegalStateException("call initialize first!");
         Progress p = progressMutableLiveData.getValue();
         if (!forceCreate && p != null && p.isValid()) {
             return false; // download already up
         }
+        DownloadEngine.Detached detached = DownloadEngine.getInstance().reattach(url.toString());
+        if (detached != null) {
+            if (!forceCreate && isSameDownload(detached.task, destination)) {
+                // transfer started by cleared view model goes on
+                attach(context, url, detached);
+                return true;
+            }
+            detached.cancel();
+        }
         //add new download task
         p = new Progress(url, fileSizeLimit);
+        p.mirrors = mirrors;
+        p.destination = destination;
         progressMutableLiveData.setValue(p);
         // prevent activity leaks by referencing app context
         appContext = context.getApplicationContext();
-        if (url.getScheme().equals("content"))
-            loaderTask = new ContentLoaderTask(appContext, url.toString(), fileSizeLimit, cacheSize, timeout);
-        else
-            loaderTask = new WebLoaderTask(appContext, url.toString(), fileSizeLimit, cacheSize, timeout);
+        MemoryCache.getInstance().register(appContext);
+        if (url.getScheme().equals("content")) {
+            ContentLoaderTask contentTask = new ContentLoaderTask(appContext, url.toString(), fileSizeLimit, cacheSize, timeout);
+            contentTask.setDirectAccess(directContentAccess && destination == null);
+            loaderTask = contentTask;
+        } else {
+            WebLoaderTask webTask = new WebLoaderTask(appContext, url.toString(), fileSizeLimit, cacheSize, timeout);
+            List<String> mirrorUrls = new ArrayList<>(mirrors.size());
+            for (Uri mirror : mirrors)
+                mirrorUrls.add(mirror.toString());
+            webTask.setMirrors(mirrorUrls);
+            webTask.setHedgeDelay(hedgeDelay);
+            loaderTask = webTask;
+        }
         // use loader tasks in compatibility mode
         loaderTask.setCallback(legacyCallback);
+        loaderTask.setMetricsListener(metricsListener);
+        loaderTask.setReadTimeout(readTimeout);
+        loaderTask.setRetryPolicy(retryPolicy);
+        loaderTask.setMaxCacheBytes(maxCacheBytes);
+        loaderTask.setDestination(destination);
+        loaderTask.setTransforms(transforms);
+        loaderTask.setWriteBehind(writeBehind);
+        // forced download starts over, cache is cleared as the first step of the task
+        loaderTask.setInvalidating(forceCreate);
         loaderTask.registerListener(++currentLoaderId, this);
         loaderTask.forceLoad();
         return true;
     }
 
+    /**
+     * Take over detached task and its progress
+     */
+    private void attach(Context context, Uri url, DownloadEngine.Detached detached) {
+        LoaderTask task = detached.task;
+        Progress p = new Progress(url, task.mobileWarning);
+        p.destination = task.getDestination();
+        if (task instanceof WebLoaderTask) {
+            List<Uri> mirrors = new ArrayList<>();
+            for (String mirror : ((WebLoaderTask) task).getMirrors())
+                mirrors.add(Uri.parse(mirror));
+            p.mirrors = mirrors;
+        }
+        p.progress = detached.progress;
+        p.max = detached.max;
+        p.isDeterminate = detached.isDeterminate;
+        progressMutableLiveData.setValue(p);
+        appContext = context.getApplicationContext();
+        loaderTask = task;
+        task.setCallback(legacyCallback);
+        task.registerListener(++currentLoaderId, this);
+        if (detached.isComplete)
+            onLoadComplete(task, detached.result);
+    }
+
+    /**
+     * @return true if detached task produces what download with current settings would
+     */
+    private boolean isSameDownload(LoaderTask task, Destination destination) {
+        Destination other = task.getDestination();
+        if (destination == null || other == null) {
+            if (destination != other)
+                return false;
+        } else if (destination != other && (destination.getFile() == null || !destination.getFile().equals(other.getFile()))) {
+            return false;
+        }
+        return task.getResultKey().equals(destination == null
+                ? CacheKeys.getDerivedKey(task.url, transforms) : task.url);
+    }
+
     @Override
     protected void onCleared() {
+        boolean isDetached = false;
+        if (loaderTask != null) {
+            loaderTask.unregisterListener(this);
+            Progress p = progressMutableLiveData.getValue();
+            // hand running transfer over before this view model reports itself finished
+            isDetached = detachOnClear && p != null && p.isRunning()
+                    && DownloadEngine.getInstance().detach(loaderTask.url, loaderTask, p.progress, p.max, p.isDeterminate);
+        }
         isFinishing = true;
         if (appContext != null) {
             //appcontext cleanup?
         }
         if (loaderTask != null) {
-            loaderTask.cancelLoadInBackground();
-            loaderTask.unregisterListener(this);
+            if (!isDetached)
+                loaderTask.cancelLoadInBackground();
             loaderTask = null;
         }
     }
@@ -137,8 +447,11 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
     // legacy callback from platform loader
     @Override
     public void onLoadComplete(@NonNull Loader<CacheableFile> loader, @Nullable CacheableFile data) {
-        if (isFinishing || currentLoaderId != loader.getId())
+        if (isFinishing || currentLoaderId != loader.getId()) {
+            if (data != null)
+                data.closeDirectHandle();
             return;
+        }
         Progress p = progressMutableLiveData.getValue();
         if(p == null){
             Log.e(TAG, "onLoadComplete: missing download progress");
@@ -158,8 +471,13 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
         } else {
             if (data == null)
                 p.error = new Error(task.getErrorMessage(), task.getErrorCode());
-            else {
+            else if (data.destination != null) {
+                p.result = data.destination.getFile();
+                p.isWrittenToDestination = true;
+            } else {
                 p.result = data.file;
+                p.directHandle = (AssetFileDescriptor) data.directHandle;
+                p.bytes = data.bytes;
             }
         }
         progressMutableLiveData.postValue(p);
@@ -220,7 +538,10 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
          * Target url
          */
         public final Uri url;
-        public final int fileSizeLimit;
+        public final long fileSizeLimit;
+        List<Uri> mirrors = Collections.emptyList();
+        Destination destination;
+        boolean isWrittenToDestination = false;
         boolean isFileTooLarge = false;
         String fileTooLargeMessage;
         Error error;
@@ -228,9 +549,11 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
         long max = -1;
         int status = 0;
         File result;
+        AssetFileDescriptor directHandle;
+        ByteBuffer bytes;
         boolean isDeterminate = false;
 
-        private Progress(Uri url, int fileSizeLimit) {
+        private Progress(Uri url, long fileSizeLimit) {
             this.url = url;
             this.fileSizeLimit = fileSizeLimit;
         }
@@ -279,14 +602,14 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
          * If true download task is still alive.
          */
         public boolean isRunning() {
-            return result == null && !isFileTooLarge && error == null;
+            return result == null && directHandle == null && !isWrittenToDestination && !isFileTooLarge && error == null;
         }
 
         /**
          * If true this task haven't failed or wasn't cancelled.
          */
         public boolean isValid() {
-            return result != null || (!isFileTooLarge && error == null);
+            return result != null || directHandle != null || isWrittenToDestination || (!isFileTooLarge && error == null);
         }
 
         /**
@@ -295,6 +618,38 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
         public File getResult() {
             return result;
         }
+
+        /**
+         * Read only contents of result if it's small enough for {@link MemoryCache}, null otherwise.
+         */
+        @Nullable
+        public ByteBuffer getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Destination passed to {@link #downloadUrl(Context, Uri, Destination, long)}, null if file is downloaded into cache.
+         */
+        @Nullable
+        public Destination getDestination() {
+            return destination;
+        }
+
+        /**
+         * If true file was completely written to {@link #getDestination()}.
+         */
+        public boolean isWrittenToDestination() {
+            return isWrittenToDestination;
+        }
+
+        /**
+         * Direct handle to local content read in place, set instead of {@link #getResult()} when
+         * {@link #setDirectContentAccess(boolean)} is enabled. Receiver is responsible for closing it.
+         */
+        @Nullable
+        public AssetFileDescriptor getDirectHandle() {
+            return directHandle;
+        }
     }
 
     /**
@@ -308,6 +663,7 @@ public class WebFileViewModel extends ViewModel implements Loader.OnLoadComplete
         final static int ERROR_SOCKET = R.string.webfiledownloader_error_socket;
         final static int ERROR_UNVERIFIED = R.string.webfiledownloader_error_unverified;
         final static int ERROR_OTHER = R.string.webfiledownloader_error_other;
+        final static int ERROR_NO_SPACE = R.string.webfiledownloader_error_noSpace;
 
         public final String message;
         public final int code;
@@ -4,94 +4,104 @@ import android.content.Context;
 import android.text.format.Formatter;
 
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Task that downloads file from the web.
  */
 class WebLoaderTask extends LoaderTask {
-	private final static String ETAG = "ETag";
-	private final static String LAST_MODIFIED = "Last-Modified";
+	final static long DEFAULT_HEDGE_DELAY = 1000;
 
-	private HttpURLConnection connection = null;
+	private List<String> mirrors = Collections.emptyList();
+	private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+	private volatile HttpDownload download = null;
 
-	WebLoaderTask(Context context, String url, int mobileWarning, int cacheSize, int timeout) {
+	WebLoaderTask(Context context, String url, long mobileWarning, int cacheSize, int timeout) {
 		super(context, url, mobileWarning, cacheSize, timeout);
 	}
 
+	/**
+	 * @param mirrors urls serving the same file as {@link #url}, which stays the cache key
+	 */
+	void setMirrors(List<String> mirrors) {
+		this.mirrors = mirrors;
+	}
+
+	List<String> getMirrors() {
+		return mirrors;
+	}
+
+	/**
+	 * @param hedgeDelay time (in milliseconds) without response after which next mirror is
+	 *                   requested too
+	 */
+	void setHedgeDelay(long hedgeDelay) {
+		this.hedgeDelay = hedgeDelay;
+	}
+
 	@Override
 	protected InputStream openInputStream(CacheableFile imageFile) throws Exception {
-		connection = (HttpURLConnection) new URL(url).openConnection();
-		connection.setConnectTimeout(timeout);
-		if (imageFile.isPartiallyLoaded()) {
+		List<String> urls = new ArrayList<>(mirrors.size() + 1);
+		urls.add(url);
+		urls.addAll(mirrors);
+		HttpDownload download = new HttpDownload(urls, hedgeDelay, timeout, readTimeout,
+				DownloadExecutors.getConnectExecutor());
+		this.download = download;
+		if (isStopped()) {
+			return null;
+		}
+		if (imageFile.isPartiallyLoaded() && imageFile.length > 0) {
 			//if image is not loaded fully try to continue
-			connection.setRequestProperty("Range", "bytes=" + imageFile.file.length()
-					+ "-");
-			if (imageFile.length > 0)
-				updateProgress((int) imageFile.file.length(), imageFile.length, false);
+			updateProgress(imageFile.getStoredLength(), imageFile.length, false);
 		}
 
-		connection.connect();
+		//every mirror continues stored bytes if its validator matches
+		boolean isOpened = download.open(imageFile);
+		metrics.markHeadersReceived();
+		metrics.hedgedRequests += download.getHedgeCount();
 		if (isStopped()) {
 			return null;
 		}
 
-
-		int httpResponseCode = connection.getResponseCode();
-		setErrorMessage(httpResponseCode + " - " + connection.getResponseMessage());
-
-		if (httpResponseCode == HttpURLConnection.HTTP_PARTIAL) {
-			//server accepted our partial load request, check if ETag is same
-			if (imageFile.eTag != null && imageFile.eTag.equals(getResponseEtag())) {
-				fileLength = imageFile.length;
-				imageFile.partIsValid = true;
-			} else {
-				//if ETag is invalid we have to request http again and get full file
-				connection.disconnect();
-				connection = (HttpURLConnection) new URL(url).openConnection();
-				connection.setConnectTimeout(timeout);
-				connection.connect();
-			}
-		} else if (httpResponseCode != HttpURLConnection.HTTP_OK) {
+		setErrorMessage(download.getResponseCode() + " - " + download.getResponseMessage());
+		if (!isOpened) {
 			//something failed
 			setErrorCode(WebFileDownloader.ERROR_HTTP_RESPONSE);
 			return null;
 		}
+		fileLength = imageFile.length;
 
-		if (!imageFile.partIsValid) {
-			//we download from scratch
-			fileLength = connection.getContentLength();
-			imageFile.eTag = getResponseEtag();
-			imageFile.length = fileLength;
+		long storedLength = imageFile.getStoredLength();
+		if (download.isOverLimit(mobileWarning, storedLength)) {
+			setErrorCode(WebFileDownloader.ERROR_WARNING_SIZE);
+			setErrorMessage(Formatter.formatShortFileSize(getContext(), fileLength - storedLength));
+			return null;
 		}
+		return download.getInputStream();
+	}
 
-		if (mobileWarning >= 0) {
-			long downloadSize = (fileLength - imageFile.file.length());
-			if (downloadSize > mobileWarning) {
-				setErrorCode(WebFileDownloader.ERROR_WARNING_SIZE);
-				setErrorMessage(Formatter.formatShortFileSize(getContext(), downloadSize));
-				return null;
-			}
-		}
-		return connection.getInputStream();
+	@Override
+	protected boolean isNetworkLoad() {
+		return true;
 	}
 
 	@Override
-	protected void doFinally() {
-		if (connection != null)
-			connection.disconnect();
+	protected void abortTransfer() {
+		HttpDownload download = this.download;
+		if (download != null)
+			download.abort();
+		super.abortTransfer();
 	}
 
-	/**
-	 * Get ETAG header provided by server, if its missing use last-modified instead
-	 *
-	 * @return etag or last-modified value
-	 */
-	private String getResponseEtag() {
-		String ret = connection.getHeaderField(ETAG);
-		if (ret == null || ret.isEmpty())
-			ret = connection.getHeaderField(LAST_MODIFIED);
-		return ret;
+	@Override
+	protected void doFinally() {
+		HttpDownload download = this.download;
+		if (download != null) {
+			this.download = null;
+			download.disconnect();
+			metrics.discardedBytes += download.getDiscardedBytes();
+		}
 	}
 }